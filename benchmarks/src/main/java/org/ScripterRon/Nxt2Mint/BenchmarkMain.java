@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks
+ *
+ * The command-line options are the same as for the JMH runner.  The results are written
+ * in JSON format to nxt2mint-benchmarks.json unless a different result format or file
+ * is specified using -rf or -rff.
+ */
+public class BenchmarkMain {
+
+    /** Default result file */
+    private static final String RESULT_FILE = "nxt2mint-benchmarks.json";
+
+    /**
+     * Run the benchmarks
+     *
+     * @param       args            JMH command-line options
+     * @throws      Exception       Unable to run the benchmarks
+     */
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        if (cmdOptions.shouldHelp()) {
+            cmdOptions.showHelp();
+            return;
+        }
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmdOptions);
+        if (!cmdOptions.getResultFormat().hasValue())
+            builder.resultFormat(ResultFormatType.JSON);
+        if (!cmdOptions.getResult().hasValue())
+            builder.result(RESULT_FILE);
+        Runner runner = new Runner(builder.build());
+        if (cmdOptions.shouldList())
+            runner.list();
+        else
+            runner.run();
+    }
+}
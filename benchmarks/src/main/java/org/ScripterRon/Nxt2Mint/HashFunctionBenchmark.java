@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hash function benchmarks
+ *
+ * Each engine hashes a fixed range of nonces for a fixed input and an all-zero target,
+ * so every batch hashes the same nonces and never meets the target.  The score is
+ * hashes per second.
+ *
+ * The sha3-jce engine requires Java 9 or later.  The vector SHA-256 engine requires
+ * Java 17 and is not part of the default engine list.  Run it with
+ * "-p engine=sha256-vector -jvmArgsAppend --add-modules=jdk.incubator.vector".
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashFunctionBenchmark {
+
+    /** Number of nonces hashed by each benchmark invocation */
+    private static final int BATCH_SIZE = 1024;
+
+    /** First nonce */
+    private static final long FIRST_NONCE = 0x0123456789abcdefL;
+
+    /** Minting counter */
+    private static final long COUNTER = 12345;
+
+    /** Hash engine */
+    @Param({"sha256", "sha256-jce", "sha3", "sha3-bitsliced", "sha3-jce", "knv25", "knv25-bitsliced",
+            "scrypt", "scrypt-x4"})
+    public String engine;
+
+    /** Hash function */
+    private HashFunction hashFunction;
+
+    /** Input data */
+    private final byte[] inputBytes = new byte[40];
+
+    /** Target */
+    private final byte[] targetBytes = new byte[32];
+
+    /**
+     * Create the hash function and set the input data
+     *
+     * @throws      Exception       Unable to create the hash function
+     */
+    @Setup
+    public void setup() throws Exception {
+        Main.currencyId = 0x1122334455667788L;
+        Main.mintingUnits = 100000000L;
+        Main.accountId = 0x0102030405060708L;
+        MintWorker.buildInput(inputBytes, FIRST_NONCE, COUNTER);
+        hashFunction = createEngine(engine);
+        hashFunction.setInput(inputBytes, targetBytes);
+    }
+
+    /**
+     * Hash a batch of nonces
+     *
+     * @return                      Number of nonces hashed
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int hash() {
+        hashFunction.hash(FIRST_NONCE, BATCH_SIZE, () -> false);
+        return hashFunction.getCount();
+    }
+
+    /**
+     * Set the input data for a new minting counter
+     *
+     * @return                      Hash function
+     */
+    @Benchmark
+    public HashFunction setInput() {
+        hashFunction.setInput(inputBytes, targetBytes);
+        return hashFunction;
+    }
+
+    /**
+     * Create the hash function for an engine name
+     *
+     * @param       name            Engine name
+     * @return                      Hash function
+     * @throws      Exception       Unable to create the hash function
+     */
+    private static HashFunction createEngine(String name) throws Exception {
+        HashFunction hashFunction;
+        switch (name) {
+            case "sha256":
+                hashFunction = new HashSha256();
+                break;
+            case "sha256-vector":
+                hashFunction = (HashFunction)Class.forName("org.ScripterRon.Nxt2Mint.HashSha256Vector")
+                                                  .getDeclaredConstructor().newInstance();
+                break;
+            case "sha256-jce":
+                hashFunction = new HashJce(2);
+                break;
+            case "sha3":
+                hashFunction = new HashSha3();
+                break;
+            case "sha3-bitsliced":
+                hashFunction = new HashKeccakBitsliced(3);
+                break;
+            case "sha3-jce":
+                hashFunction = new HashJce(3);
+                break;
+            case "knv25":
+                hashFunction = new HashKnv25();
+                break;
+            case "knv25-bitsliced":
+                hashFunction = new HashKeccakBitsliced(25);
+                break;
+            case "scrypt":
+                hashFunction = new HashScrypt(1, 1);
+                break;
+            case "scrypt-x4":
+                hashFunction = new HashScrypt(4, 1);
+                break;
+            default:
+                throw new IllegalArgumentException("Hash engine "+name+" is not supported");
+        }
+        return hashFunction;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host-side benchmarks for the mint worker and the GPU functions
+ *
+ * These cover the work done by the CPU for each batch: building the hash input data,
+ * building the GPU kernel data and reading the solution nonce from the kernel data
+ * returned by the GPU.  The kernel data is built in a local buffer, so no OpenCL
+ * device is needed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HostPathBenchmark {
+
+    /** Hash input data */
+    private final byte[] inputBytes = new byte[40];
+
+    /** Target */
+    private final byte[] targetBytes = new byte[32];
+
+    /** SHA-256 kernel data */
+    private final byte[] sha256KernelData = new byte[GpuSha256.kernelDataLength];
+
+    /** SHA3 kernel data */
+    private final byte[] sha3KernelData = new byte[GpuSha3.kernelDataLength];
+
+    /** KECCAK25 kernel data */
+    private final byte[] knv25KernelData = new byte[GpuKnv25.kernelDataLength];
+
+    /** Scrypt kernel data */
+    private final byte[] scryptKernelData = new byte[GpuScrypt.kernelDataLength];
+
+    /** Kernel data with a solution */
+    private byte[] solvedKernelData;
+
+    /** Nonce */
+    private long nonce;
+
+    /**
+     * Set the input data and the target
+     */
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        Main.currencyId = random.nextLong();
+        Main.mintingUnits = 100000000L;
+        Main.accountId = random.nextLong();
+        random.nextBytes(targetBytes);
+        MintWorker.buildInput(inputBytes, random.nextLong(), 12345);
+        solvedKernelData = new byte[GpuSha3.kernelDataLength];
+        random.nextBytes(solvedKernelData);
+    }
+
+    /**
+     * Build the hash input data for the next nonce
+     *
+     * @return                      Input data
+     */
+    @Benchmark
+    public byte[] buildInput() {
+        MintWorker.buildInput(inputBytes, ++nonce, 12345);
+        return inputBytes;
+    }
+
+    /**
+     * Build the SHA-256 kernel data
+     *
+     * @return                      Kernel data
+     */
+    @Benchmark
+    public byte[] gpuSha256SetInput() {
+        GpuSha256.setKernelData(sha256KernelData, inputBytes, targetBytes);
+        return sha256KernelData;
+    }
+
+    /**
+     * Build the SHA3 kernel data
+     *
+     * @return                      Kernel data
+     */
+    @Benchmark
+    public byte[] gpuSha3SetInput() {
+        GpuSha3.setKernelData(sha3KernelData, inputBytes, targetBytes);
+        return sha3KernelData;
+    }
+
+    /**
+     * Build the KECCAK25 kernel data
+     *
+     * @return                      Kernel data
+     */
+    @Benchmark
+    public byte[] gpuKnv25SetInput() {
+        GpuKnv25.setKernelData(knv25KernelData, inputBytes, targetBytes);
+        return knv25KernelData;
+    }
+
+    /**
+     * Build the Scrypt kernel data
+     *
+     * @return                      Kernel data
+     */
+    @Benchmark
+    public byte[] gpuScryptSetInput() {
+        GpuScrypt.setKernelData(scryptKernelData, inputBytes, targetBytes);
+        return scryptKernelData;
+    }
+
+    /**
+     * Read the solution nonce from the kernel data
+     *
+     * The solution is stored in the last 8 bytes of the kernel data for every GPU function.
+     *
+     * @return                      Solution nonce
+     */
+    @Benchmark
+    public long gpuReadSolution() {
+        return GpuFunction.getSolution(solvedKernelData, solvedKernelData.length-8);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Target comparison benchmarks
+ *
+ * The digest matches the target in the 'equalWords' most significant 32-bit words, so the
+ * comparison is decided by the word that follows.  Almost every hash is decided by the
+ * first word, while a digest that is close to the target must compare all of the words.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TargetCompareBenchmark {
+
+    /** Number of equal most significant 32-bit words */
+    @Param({"0", "4", "7"})
+    public int equalWords;
+
+    /** SHA-256 state words */
+    private final int[] state = new int[8];
+
+    /** SHA-256 target words */
+    private final int[] targetWords = new int[8];
+
+    /** Keccak lanes */
+    private long state0, state1, state2, state3;
+
+    /** Keccak target words */
+    private long target0, target1, target2, target3;
+
+    /**
+     * Build a digest and a target that differ in the selected word
+     */
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        byte[] digestBytes = new byte[32];
+        random.nextBytes(digestBytes);
+        byte[] targetBytes = digestBytes.clone();
+        int word = 7 - equalWords;
+        targetBytes[word*4+3] ^= (byte)0x80;
+        //
+        // The SHA-256 digest bytes are the big-endian state words
+        //
+        for (int i=0; i<8; i++) {
+            state[i] = ((digestBytes[i*4] & 0xff) << 24) |
+                       ((digestBytes[i*4+1] & 0xff) << 16) |
+                       ((digestBytes[i*4+2] & 0xff) << 8) |
+                       (digestBytes[i*4+3] & 0xff);
+            targetWords[i] = (targetBytes[i*4] & 0xff) |
+                             ((targetBytes[i*4+1] & 0xff) << 8) |
+                             ((targetBytes[i*4+2] & 0xff) << 16) |
+                             ((targetBytes[i*4+3] & 0xff) << 24);
+        }
+        //
+        // The Keccak digest bytes are the little-endian lanes
+        //
+        state0 = getLong(digestBytes, 0);
+        state1 = getLong(digestBytes, 8);
+        state2 = getLong(digestBytes, 16);
+        state3 = getLong(digestBytes, 24);
+        target0 = getLong(targetBytes, 0);
+        target1 = getLong(targetBytes, 8);
+        target2 = getLong(targetBytes, 16);
+        target3 = getLong(targetBytes, 24);
+    }
+
+    /**
+     * Compare a SHA-256 digest with the target
+     *
+     * @return                      TRUE if the target is met
+     */
+    @Benchmark
+    public boolean sha256() {
+        return HashFunction.meetsTarget(state, targetWords);
+    }
+
+    /**
+     * Compare a Keccak digest with the target
+     *
+     * @return                      TRUE if the target is met
+     */
+    @Benchmark
+    public boolean keccak() {
+        return HashFunction.meetsTarget(state0, state1, state2, state3, target0, target1, target2, target3);
+    }
+
+    /**
+     * Get a little-endian long value
+     *
+     * @param       bytes           Byte array
+     * @param       offset          Starting offset
+     * @return                      Long value
+     */
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i=7; i>=0; i--)
+            value = (value << 8) | (bytes[offset+i] & 0xff);
+        return value;
+    }
+}
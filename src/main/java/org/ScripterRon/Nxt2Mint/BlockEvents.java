@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+import static org.ScripterRon.Nxt2Mint.Main.log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * BlockEvents receives a notification from the Nxt node when a block is added to the
+ * blockchain.
+ *
+ * The event thread registers for the Block.BLOCK_PUSHED event using the 'eventRegister'
+ * API and then waits for events using the 'eventWait' API.  The node holds an
+ * 'eventWait' request until an event occurs or the wait times out, so the minting
+ * controller is told about a new block as soon as the node has processed it.  The
+ * events are received from the primary node and the registration is repeated with the
+ * current primary node after an error.  The minting controller polls the blockchain
+ * status while the notifications are not available.
+ */
+public class BlockEvents {
+
+    /** Event wait timeout (seconds) */
+    private static final int WAIT_TIMEOUT = 60;
+
+    /** Delay before registering again after an error (milliseconds) */
+    private static final long RETRY_DELAY = 30000;
+
+    /** Block notifications are being received */
+    private static volatile boolean active;
+
+    /** Event thread */
+    private static Thread eventThread;
+
+    /**
+     * Start receiving block notifications
+     */
+    public static void start() {
+        eventThread = new Thread(BlockEvents::run, "Block events");
+        eventThread.setDaemon(true);
+        eventThread.start();
+    }
+
+    /**
+     * Check if block notifications are being received
+     *
+     * @return                      TRUE if block notifications are being received
+     */
+    public static boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Wait for block events until the thread is interrupted
+     */
+    private static void run() {
+        boolean errorLogged = false;
+        try {
+            while (true) {
+                NxtNode node = Main.nodePool.getPrimary();
+                try {
+                    Map<String, Object> response = NodeRequest.issueRequest(node, "eventRegister",
+                                                            "event=Block.BLOCK_PUSHED", WAIT_TIMEOUT*1000);
+                    Object token = response.get("token");
+                    if (token == null)
+                        throw new IOException("No event token returned by the node");
+                    if (!active)
+                        log.info(String.format("Receiving block notifications from Nxt node %s", node));
+                    active = true;
+                    errorLogged = false;
+                    while (true) {
+                        response = NodeRequest.issueRequest(node, "eventWait",
+                                                            "token=" + token + "&timeout=" + WAIT_TIMEOUT,
+                                                            (WAIT_TIMEOUT+10)*1000);
+                        long eventTime = System.currentTimeMillis();
+                        Object events = response.get("events");
+                        if (events instanceof List && !((List<?>)events).isEmpty()) {
+                            Metrics.increment("blocks.events");
+                            Mint.blockPushed(eventTime);
+                        }
+                    }
+                } catch (IOException exc) {
+                    active = false;
+                    Metrics.increment("blocks.eventErrors");
+                    if (!errorLogged) {
+                        log.warn(String.format("Block notifications are not available - polling the blockchain status: %s",
+                                               exc.getMessage()));
+                        errorLogged = true;
+                    }
+                }
+                Thread.sleep(RETRY_DELAY);
+            }
+        } catch (InterruptedException exc) {
+            active = false;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+import static org.ScripterRon.Nxt2Mint.Main.log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * CPU topology and thread placement on Linux
+ *
+ * The logical processors are read from /sys/devices/system/cpu and the NUMA nodes from
+ * /sys/devices/system/node.  The CPU workers are placed one per physical core first,
+ * alternating between the processor packages, and then on the SMT siblings.  A worker
+ * pins its own thread using 'taskset' and the native thread identifier obtained from
+ * /proc/thread-self, so no native library is needed.  The worker creates its hash
+ * function after it has been pinned, so the Scrypt scratchpad is first touched on the
+ * worker's NUMA node.
+ */
+public class CpuTopology {
+
+    /** Warm-up time for the pinned and unpinned rate measurements (milliseconds) */
+    private static final long WARMUP_TIME = 1000;
+
+    /** Measurement time for the pinned and unpinned rate measurements (milliseconds) */
+    private static final long MEASUREMENT_TIME = 3000;
+
+    /** Logical processors in placement order */
+    private static final List<Cpu> placement = new ArrayList<>();
+
+    /** Number of workers pinned to each processor in the placement list */
+    private static int[] assigned;
+
+    /**
+     * Discover the processor topology and decide whether the CPU workers should be pinned
+     *
+     * The total hash rate is measured with pinned and unpinned threads and the threads
+     * are pinned only if that is not slower.
+     *
+     * @param       algorithm       Hash algorithm
+     * @param       threads         Number of CPU threads
+     * @return                      TRUE if the CPU workers should be pinned
+     */
+    public static boolean initialize(int algorithm, int threads) {
+        if (!discover())
+            return false;
+        StringBuilder plan = new StringBuilder();
+        for (int i=0; i<threads; i++) {
+            Cpu cpu = placement.get(i % placement.size());
+            plan.append(String.format("%n  Worker %d: CPU %d (package %d, core %d, node %d)",
+                                      i, cpu.id, cpu.packageId, cpu.coreId, cpu.node));
+        }
+        log.info(String.format("CPU worker placement:%s", plan));
+        //
+        // Compare the pinned and unpinned hash rates
+        //
+        HashEngine engine = HashEngine.getEngine(algorithm);
+        try {
+            HashFunction.measureRate(threads, (index) -> engine.create(), WARMUP_TIME);
+            double unpinnedRate = HashFunction.measureRate(threads, (index) -> engine.create(), MEASUREMENT_TIME);
+            double pinnedRate = HashFunction.measureRate(threads, (index) -> {
+                pin(placement.get(index % placement.size()));
+                return engine.create();
+            }, MEASUREMENT_TIME);
+            log.info(String.format("%s using %d CPU threads: %,.3f MH/s pinned, %,.3f MH/s unpinned",
+                                   engine, threads, pinnedRate/1.0e6, unpinnedRate/1.0e6));
+            if (pinnedRate < unpinnedRate) {
+                log.info("Pinned CPU threads are slower than unpinned threads - CPU workers will not be pinned");
+                return false;
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        log.info("CPU workers will be pinned");
+        return true;
+    }
+
+    /**
+     * Pin the current thread to the next processor in the placement order
+     *
+     * The processor with the fewest workers is used, so retired workers leave a gap that
+     * is filled by the next new worker.
+     *
+     * @param       workerId        Worker identifier
+     * @return                      Processor or null if the thread was not pinned
+     */
+    public static Cpu pinWorker(int workerId) {
+        Cpu cpu = null;
+        synchronized(placement) {
+            if (placement.isEmpty())
+                return null;
+            int index = 0;
+            for (int i=1; i<assigned.length; i++) {
+                if (assigned[i] < assigned[index])
+                    index = i;
+            }
+            assigned[index]++;
+            cpu = placement.get(index);
+        }
+        if (!pin(cpu)) {
+            release(cpu);
+            return null;
+        }
+        log.info(String.format("CPU worker %d pinned to CPU %d (package %d, core %d, node %d)",
+                               workerId, cpu.id, cpu.packageId, cpu.coreId, cpu.node));
+        return cpu;
+    }
+
+    /**
+     * Release a processor when a pinned worker stops
+     *
+     * @param       cpu             Processor returned by pinWorker()
+     */
+    public static void release(Cpu cpu) {
+        synchronized(placement) {
+            int index = placement.indexOf(cpu);
+            if (index >= 0 && assigned[index] > 0)
+                assigned[index]--;
+        }
+    }
+
+    /**
+     * Read the processor topology
+     *
+     * @return                      TRUE if the topology is available
+     */
+    private static boolean discover() {
+        synchronized(placement) {
+            placement.clear();
+            if (!new File("/proc/thread-self").exists() || !new File("/sys/devices/system/cpu/online").exists()) {
+                log.warn("CPU topology is not available - CPU workers will not be pinned");
+                return false;
+            }
+            try {
+                //
+                // Get the NUMA node for each processor
+                //
+                Map<Integer, Integer> nodes = new HashMap<>();
+                File[] nodeDirs = new File("/sys/devices/system/node").listFiles(
+                        (dir, name) -> name.matches("node[0-9]+"));
+                if (nodeDirs != null) {
+                    for (File nodeDir : nodeDirs) {
+                        int node = Integer.parseInt(nodeDir.getName().substring(4));
+                        for (int cpu : parseList(readFile(new File(nodeDir, "cpulist"))))
+                            nodes.put(cpu, node);
+                    }
+                }
+                //
+                // Group the online processors by package and core.  The cores in each
+                // package are kept in core identifier order and the SMT siblings in
+                // processor order.
+                //
+                TreeMap<Integer, TreeMap<Integer, List<Cpu>>> packages = new TreeMap<>();
+                for (int id : parseList(readFile(new File("/sys/devices/system/cpu/online")))) {
+                    File topology = new File("/sys/devices/system/cpu/cpu"+id+"/topology");
+                    int packageId = Integer.parseInt(readFile(new File(topology, "physical_package_id")));
+                    int coreId = Integer.parseInt(readFile(new File(topology, "core_id")));
+                    Cpu cpu = new Cpu(id, packageId, coreId, nodes.getOrDefault(id, 0));
+                    packages.computeIfAbsent(packageId, (k) -> new TreeMap<>())
+                            .computeIfAbsent(coreId, (k) -> new ArrayList<>()).add(cpu);
+                }
+                //
+                // Build the placement order: sibling n of core m in each package in turn
+                //
+                List<List<List<Cpu>>> cores = new ArrayList<>();
+                int maxCores = 0;
+                int maxSiblings = 0;
+                for (TreeMap<Integer, List<Cpu>> packageCores : packages.values()) {
+                    List<List<Cpu>> coreList = new ArrayList<>(packageCores.values());
+                    cores.add(coreList);
+                    maxCores = Math.max(maxCores, coreList.size());
+                    for (List<Cpu> siblings : coreList)
+                        maxSiblings = Math.max(maxSiblings, siblings.size());
+                }
+                for (int sibling=0; sibling<maxSiblings; sibling++) {
+                    for (int core=0; core<maxCores; core++) {
+                        for (List<List<Cpu>> coreList : cores) {
+                            if (core < coreList.size() && sibling < coreList.get(core).size())
+                                placement.add(coreList.get(core).get(sibling));
+                        }
+                    }
+                }
+                int coreCount = 0;
+                for (List<List<Cpu>> coreList : cores)
+                    coreCount += coreList.size();
+                log.info(String.format("CPU topology: %d packages, %d cores, %d logical processors, %d NUMA nodes",
+                                       packages.size(), coreCount, placement.size(),
+                                       Math.max(nodeDirs != null ? nodeDirs.length : 0, 1)));
+            } catch (IOException | NumberFormatException exc) {
+                log.warn("Unable to read the CPU topology - CPU workers will not be pinned", exc);
+                placement.clear();
+            }
+            assigned = new int[placement.size()];
+            return !placement.isEmpty();
+        }
+    }
+
+    /**
+     * Pin the current thread to a processor
+     *
+     * @param       cpu             Processor
+     * @return                      TRUE if the thread was pinned
+     */
+    private static boolean pin(Cpu cpu) {
+        try {
+            String taskPath = new File("/proc/thread-self").getCanonicalPath();
+            String tid = taskPath.substring(taskPath.lastIndexOf('/')+1);
+            Process process = new ProcessBuilder("taskset", "-p", "-c", Integer.toString(cpu.id), tid)
+                                        .redirectErrorStream(true).start();
+            StringBuilder output = new StringBuilder();
+            try (BufferedReader in = new BufferedReader(
+                        new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null)
+                    output.append(line).append(' ');
+            }
+            if (process.waitFor() != 0) {
+                log.warn(String.format("Unable to pin thread %s to CPU %d: %s", tid, cpu.id,
+                                       output.toString().trim()));
+                return false;
+            }
+        } catch (IOException exc) {
+            log.warn(String.format("Unable to pin thread to CPU %d: %s", cpu.id, exc.getMessage()));
+            return false;
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read a single-line file
+     *
+     * @param       file            File
+     * @return                      File contents with leading and trailing whitespace removed
+     * @throws      IOException     Unable to read the file
+     */
+    private static String readFile(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * Parse a Linux processor list (for example, "0-3,8-11")
+     *
+     * @param       list            Processor list
+     * @return                      Processor numbers
+     * @throws      NumberFormatException   List is not valid
+     */
+    private static List<Integer> parseList(String list) throws NumberFormatException {
+        List<Integer> cpus = new ArrayList<>();
+        if (list.isEmpty())
+            return cpus;
+        for (String range : list.split(",")) {
+            int sep = range.indexOf('-');
+            int first = Integer.parseInt(sep < 0 ? range : range.substring(0, sep));
+            int last = (sep < 0 ? first : Integer.parseInt(range.substring(sep+1)));
+            for (int cpu=first; cpu<=last; cpu++)
+                cpus.add(cpu);
+        }
+        return cpus;
+    }
+
+    /**
+     * A logical processor
+     */
+    public static class Cpu {
+
+        /** Processor number */
+        private final int id;
+
+        /** Processor package */
+        private final int packageId;
+
+        /** Core within the package */
+        private final int coreId;
+
+        /** NUMA node */
+        private final int node;
+
+        /**
+         * Create a logical processor
+         *
+         * @param       id              Processor number
+         * @param       packageId       Processor package
+         * @param       coreId          Core within the package
+         * @param       node            NUMA node
+         */
+        private Cpu(int id, int packageId, int coreId, int node) {
+            this.id = id;
+            this.packageId = packageId;
+            this.coreId = coreId;
+            this.node = node;
+        }
+
+        /**
+         * Return the processor number
+         *
+         * @return                      Processor number
+         */
+        public int getId() {
+            return id;
+        }
+    }
+}
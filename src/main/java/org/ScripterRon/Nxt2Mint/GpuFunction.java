@@ -28,6 +28,7 @@ import org.jocl.cl_program;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.util.function.BooleanSupplier;
 
 /**
  * Currency minting hash functions using the GPU
@@ -43,6 +44,9 @@ public abstract class GpuFunction {
     /** Execution passes */
     protected int passes;
 
+    /** Execution passes completed by the last call to execute() */
+    protected int completedPasses;
+
     /** Global size */
     protected int globalSize;
 
@@ -204,12 +208,48 @@ public abstract class GpuFunction {
     }
 
     /**
-     * Return the execution count
+     * Return the number of nonces hashed by the last call to execute()
      *
      * @return                      Kernel execution count
      */
     public int getCount() {
-        return count;
+        return completedPasses*globalSize;
+    }
+
+    /**
+     * Return the number of nonces hashed by each execution pass
+     *
+     * @return                      Global size
+     */
+    public int getGlobalSize() {
+        return globalSize;
+    }
+
+    /**
+     * Return the number of execution passes needed to hash all of the work items
+     *
+     * @return                      Execution passes
+     */
+    public int getPasses() {
+        return passes;
+    }
+
+    /**
+     * Get the solution nonce stored in the kernel data
+     *
+     * @param       kernelData      Kernel data read back from the GPU
+     * @param       offset          Solution offset
+     * @return                      Solution nonce or 0 if no solution was found
+     */
+    static long getSolution(byte[] kernelData, int offset) {
+        return ((long)kernelData[offset]&255) |
+                (((long)kernelData[offset+1]&255) << 8) |
+                (((long)kernelData[offset+2]&255) << 16) |
+                (((long)kernelData[offset+3]&255) << 24) |
+                (((long)kernelData[offset+4]&255) << 32) |
+                (((long)kernelData[offset+5]&255) << 40) |
+                (((long)kernelData[offset+6]&255) << 48) |
+                (((long)kernelData[offset+7]&255) << 56);
     }
 
     /**
@@ -233,9 +273,18 @@ public abstract class GpuFunction {
     /**
      * Execute the kernel
      *
+     * Each execution pass hashes 'global size' nonces.  Execution stops when the target
+     * is met, all of the passes have been executed, 'maxPasses' passes have been executed
+     * or the cancel check returns TRUE.  The cancel check is called before each pass.
+     * Pass n hashes the nonces starting at the initial nonce plus n times the global size,
+     * so 'maxPasses' passes hash a contiguous range of 'maxPasses' times 'global size' nonces.
+     * The caller must set a new starting nonce before calling execute() again.
+     *
+     * @param       maxPasses       Maximum number of execution passes
+     * @param       cancel          Cancel check
      * @return                      TRUE if the kernel was executed
      */
-    public abstract boolean execute();
+    public abstract boolean execute(int maxPasses, BooleanSupplier cancel);
 
     /**
      * Release OpenCL resources
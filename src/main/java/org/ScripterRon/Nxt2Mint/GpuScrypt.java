@@ -25,6 +25,7 @@ import org.jocl.cl_mem;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.function.BooleanSupplier;
 
 /**
  * SCRYPT hash algorithm for Monetary System currencies
@@ -41,12 +42,15 @@ public class GpuScrypt extends GpuFunction {
     private final long[] kernelLocalSize = new long[1];
 
     /** Kernel data offset */
-    private final int inputOffset = 0;
-    private final int targetOffset = 40;
-    private final int solutionOffset = 72;
+    private static final int inputOffset = 0;
+    private static final int targetOffset = 40;
+    private static final int solutionOffset = 72;
+
+    /** Kernel data length */
+    static final int kernelDataLength = 40+32+8;
 
     /** Kernel data buffer */
-    private final byte[] kernelData = new byte[40+32+8];
+    private final byte[] kernelData = new byte[kernelDataLength];
 
     /**
      * Create the GPU hash function
@@ -141,6 +145,17 @@ public class GpuScrypt extends GpuFunction {
      */
     @Override
     public void setInput(byte[] inputBytes, byte[] targetBytes) {
+        setKernelData(kernelData, inputBytes, targetBytes);
+    }
+
+    /**
+     * Build the kernel data for the input data and the hash target
+     *
+     * @param       kernelData      Kernel data buffer
+     * @param       inputBytes      Input data (40 bytes)
+     * @param       targetBytes     Target (32 bytes)
+     */
+    static void setKernelData(byte[] kernelData, byte[] inputBytes, byte[] targetBytes) {
         if (inputBytes.length != 40)
             throw new IllegalArgumentException("Input data length must be 40 bytes");
         if (targetBytes.length != 32)
@@ -162,11 +177,15 @@ public class GpuScrypt extends GpuFunction {
     /**
      * Execute the kernel
      *
+     * @param       maxPasses       Maximum number of execution passes
+     * @param       cancel          Cancel check (called before each pass)
      * @return                      TRUE if the kernel was executed
      */
     @Override
-    public boolean execute() {
+    public boolean execute(int maxPasses, BooleanSupplier cancel) {
         boolean executed = false;
+        completedPasses = 0;
+        meetsTarget = false;
         try {
             //
             // Write the kernel data to the GPU
@@ -181,7 +200,9 @@ public class GpuScrypt extends GpuFunction {
             // items in the same work group will share local memory, which implies
             // that they will all be executed by the same compute unit.
             //
-            for (int i=0; i<passes; i++) {
+            for (int i=0; i<passes && i<maxPasses; i++) {
+                if (cancel.getAsBoolean())
+                    break;
                 passId[0] = i;
                 CL.clSetKernelArg(kernels[0], 2, Sizeof.cl_int, Pointer.to(passId));
                 CL.clSetKernelArg(kernels[1], 3, Sizeof.cl_int, Pointer.to(passId));
@@ -198,15 +219,9 @@ public class GpuScrypt extends GpuFunction {
                 CL.clEnqueueReadBuffer(commandQueue, memObjects[0], CL.CL_TRUE, 0,
                                        Sizeof.cl_uchar*kernelData.length, Pointer.to(kernelData),
                                        0, null, null);
-                nonce = ((long)kernelData[solutionOffset]&255) |
-                        (((long)kernelData[solutionOffset+1]&255) << 8) |
-                        (((long)kernelData[solutionOffset+2]&255) << 16) |
-                        (((long)kernelData[solutionOffset+3]&255) << 24) |
-                        (((long)kernelData[solutionOffset+4]&255) << 32) |
-                        (((long)kernelData[solutionOffset+5]&255) << 40) |
-                        (((long)kernelData[solutionOffset+6]&255) << 48) |
-                        (((long)kernelData[solutionOffset+7]&255) << 56);
+                nonce = getSolution(kernelData, solutionOffset);
                 meetsTarget = (nonce!=0);
+                completedPasses++;
                 if (meetsTarget)
                     break;
             }
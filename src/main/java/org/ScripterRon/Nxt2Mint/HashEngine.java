@@ -0,0 +1,414 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+import static org.ScripterRon.Nxt2Mint.Main.log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * CPU hash engine
+ *
+ * A hash algorithm can have several implementations and the fastest one depends on the
+ * Java version, the processor and the number of CPU threads.  The candidates for an
+ * algorithm are checked using known-answer tests and the total hash rate for each
+ * candidate is then measured using the configured number of CPU threads.  The fastest
+ * candidate is used by all of the workers.  The selection and the measured rates are
+ * saved in the application properties, so the measurement is skipped when Nxt2Mint is
+ * restarted using the same Java version, processor count, thread count and candidates.
+ */
+public class HashEngine {
+
+    /** Warm-up time for each candidate (milliseconds) */
+    private static final long WARMUP_TIME = 1000;
+
+    /** Measurement time for each candidate (milliseconds) */
+    private static final long MEASUREMENT_TIME = 2000;
+
+    /** Warm-up time for each thread count (milliseconds) */
+    private static final long THREAD_WARMUP_TIME = 500;
+
+    /** Measurement time for each thread count (milliseconds) */
+    private static final long THREAD_MEASUREMENT_TIME = 1500;
+
+    /** Fraction of the best total hash rate that is accepted for a smaller thread count */
+    private static final double THREAD_RATE_TOLERANCE = 0.98;
+
+    /**
+     * Known-answer tests (algorithm, first nonce, solution nonce, digest)
+     *
+     * Input bytes 8-39 are 8-39 and the target is the digest for the solution nonce.
+     * The digests for the nonces preceding the solution nonce are greater than the target,
+     * so the solution must be found in the lane that hashes the solution nonce.  The
+     * ranges also cross a 64-nonce boundary and the low-order 32 bits of the nonce.
+     */
+    private static final String[][] knownAnswers = {
+        {"2", "0123456789abcdef", "0123456789abcdef", "200879baf2adebd6b48b06911ca6ff8a7e27f14a3a9054514cc376d33b346eed"},
+        {"2", "3fb72ea61d950c7e", "3fb72ea61d950c83", "8b92a8d9125209fc16a79f7061830fbb21969fc81c3e7e4c0254f3a0e5a09000"},
+        {"2", "12345680fffffffa", "1234568100000007", "8d446f19140697397aa0b0cb3af2151859225154ed1cf5e6ab92697a1cdb2a2a"},
+        {"3", "0123456789abcdef", "0123456789abcdef", "4449cd6286da72ba5ab34fdf552b7b8f608250fa71a039293097fc5573e56884"},
+        {"3", "3fb72ea61d950c7e", "3fb72ea61d950c83", "ea7ca38d19c7e60d744f3f7deb92ebe5a9a85dc2f595103d17852545d2bab529"},
+        {"3", "12345678fffffffa", "1234567900000007", "0322cf1a367b4d9fae4c52bc23aa23a95dbc69898630f9a752978f113dbb6a00"},
+        {"5", "0123456789abcdef", "0123456789abcdef", "1a3333bd7b1df4b31428f91778952e5141be3752c3f3672db09b4fc83319f8ab"},
+        {"5", "3fb72ea61d950e3e", "3fb72ea61d950e43", "e88672ad162c0c3562c363f41f94d83693063a5e45f0d5b7ad629d41c8ea7c02"},
+        {"5", "12345690fffffffa", "1234569100000007", "a96379c0228f9711f19ca2a26051ec89a9e6c4a9369407231b47d31e10030105"},
+        {"25", "0123456789abcdef", "0123456789abcdef", "5c99bdfcd0c5e053d933178afa08592135e9f1b3911d8d89b6aee49a5207fe06"},
+        {"25", "3fb72ea61d950d7e", "3fb72ea61d950d83", "1d12a0a070eaba1886e74c81f5e7a6de3378ef9b283fe416333093b44c912f02"},
+        {"25", "12345687fffffffa", "1234568800000007", "3623c8969995f5952e03ef44279a77ca8dda1e49b112834f7461862fe1740520"}
+    };
+
+    /** Hash engine candidates */
+    private static final List<HashEngine> candidates = new ArrayList<>();
+    static {
+        candidates.add(new HashEngine(2, "scalar", HashSha256::new));
+        candidates.add(new HashEngine(2, "vector", HashEngine::createVectorSha256));
+        candidates.add(new HashEngine(2, "jce", () -> new HashJce(2)));
+        candidates.add(new HashEngine(3, "scalar", HashSha3::new));
+        candidates.add(new HashEngine(3, "bitsliced", () -> new HashKeccakBitsliced(3)));
+        candidates.add(new HashEngine(3, "jce", () -> new HashJce(3)));
+        candidates.add(new HashEngine(5, "scalar", () -> new HashScrypt(Main.scryptLanes, Main.scryptLookupGap)));
+        candidates.add(new HashEngine(25, "scalar", HashKnv25::new));
+        candidates.add(new HashEngine(25, "bitsliced", () -> new HashKeccakBitsliced(25)));
+    }
+
+    /** Selected engine for each algorithm */
+    private static final Map<Integer, HashEngine> selectedEngines = new HashMap<>();
+
+    /** Hash algorithm */
+    private final int algorithm;
+
+    /** Engine name */
+    private final String name;
+
+    /** Hash function creator */
+    private final Supplier<HashFunction> creator;
+
+    /**
+     * Create a hash engine
+     *
+     * @param       algorithm       Hash algorithm
+     * @param       name            Engine name
+     * @param       creator         Hash function creator
+     */
+    private HashEngine(int algorithm, String name, Supplier<HashFunction> creator) {
+        this.algorithm = algorithm;
+        this.name = name;
+        this.creator = creator;
+    }
+
+    /**
+     * Return the hash algorithm
+     *
+     * @return                      Hash algorithm
+     */
+    public int getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Return the engine name
+     *
+     * @return                      Engine name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Create a hash function
+     *
+     * @return                      Hash function
+     * @throws      IllegalStateException   Engine is not available on this system
+     */
+    public HashFunction create() {
+        return creator.get();
+    }
+
+    /**
+     * Return the engine description
+     *
+     * @return                      Description
+     */
+    @Override
+    public String toString() {
+        return String.format("Algorithm %d %s engine", algorithm, name);
+    }
+
+    /**
+     * Return the candidates for an algorithm
+     *
+     * @param       algorithm       Hash algorithm
+     * @return                      Candidate list
+     */
+    public static List<HashEngine> getCandidates(int algorithm) {
+        List<HashEngine> engines = new ArrayList<>();
+        for (HashEngine engine : candidates) {
+            if (engine.algorithm == algorithm)
+                engines.add(engine);
+        }
+        return engines;
+    }
+
+    /**
+     * Return the hash engine for an algorithm
+     *
+     * The engine is selected the first time the algorithm is used.
+     *
+     * @param       algorithm       Hash algorithm
+     * @return                      Hash engine
+     * @throws      IllegalArgumentException    Algorithm is not supported
+     */
+    public static HashEngine getEngine(int algorithm) {
+        synchronized(selectedEngines) {
+            HashEngine engine = selectedEngines.get(algorithm);
+            if (engine == null) {
+                engine = selectEngine(algorithm, Math.max(Main.cpuThreads, 1));
+                selectedEngines.put(algorithm, engine);
+            }
+            return engine;
+        }
+    }
+
+    /**
+     * Calibrate the number of CPU threads for an algorithm
+     *
+     * The total hash rate for the selected engine is measured starting with 1 thread and
+     * adding a thread at a time until the rate has not improved for two thread counts or
+     * every processor is in use.  Memory-bound algorithms like Scrypt stop scaling before
+     * all of the processors are busy and the Keccak algorithms gain little from SMT
+     * threads, so the smallest thread count within 2% of the best rate is used.  The
+     * result is saved in the application properties and the calibration is skipped when
+     * Nxt2Mint is restarted on the same system with the same engine.
+     *
+     * @param       algorithm       Hash algorithm
+     * @return                      Number of CPU threads
+     * @throws      IllegalArgumentException    Algorithm is not supported
+     */
+    public static int calibrateThreads(int algorithm) {
+        HashEngine engine = getEngine(algorithm);
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        String system = String.format("%s,%s,%s,%d,%s,%d,%d", System.getProperty("java.vm.name"),
+                                      System.getProperty("java.version"), System.getProperty("os.arch"),
+                                      maxThreads, engine.name, Main.scryptLanes, Main.scryptLookupGap);
+        String prefix = "hash.threads."+algorithm;
+        if (Main.properties != null && system.equals(Main.properties.getProperty(prefix+".system"))) {
+            try {
+                int threads = Integer.parseInt(Main.properties.getProperty(prefix+".count"));
+                if (threads >= 1 && threads <= maxThreads) {
+                    log.info(String.format("Using %d CPU threads (saved rates %s MH/s)", threads,
+                                           Main.properties.getProperty(prefix+".rates")));
+                    return threads;
+                }
+            } catch (NumberFormatException exc) {
+                log.warn("Saved CPU thread count is not valid - calibrating");
+            }
+        }
+        //
+        // Ramp up the thread count while the total hash rate improves
+        //
+        log.info(String.format("Calibrating the CPU thread count for %s using up to %d threads",
+                               engine, maxThreads));
+        double[] threadRates = new double[maxThreads+1];
+        double bestRate = 0;
+        int misses = 0;
+        StringBuilder rates = new StringBuilder();
+        try {
+            for (int threads=1; threads<=maxThreads && misses<2; threads++) {
+                double rate = engine.measureRate(threads, THREAD_WARMUP_TIME, THREAD_MEASUREMENT_TIME);
+                threadRates[threads] = rate;
+                log.info(String.format("%d CPU threads: %,.3f MH/s", threads, rate/1.0e6));
+                if (rates.length() > 0)
+                    rates.append(',');
+                rates.append(String.format("%d=%.3f", threads, rate/1.0e6));
+                if (rate > bestRate) {
+                    bestRate = rate;
+                    misses = 0;
+                } else {
+                    misses++;
+                }
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            log.warn("CPU thread calibration interrupted");
+        }
+        //
+        // Use the smallest thread count that is close to the best rate
+        //
+        int threads = 1;
+        while (threadRates[threads] < bestRate*THREAD_RATE_TOLERANCE)
+            threads++;
+        log.info(String.format("Using %d CPU threads", threads));
+        if (Main.properties != null && !Thread.currentThread().isInterrupted()) {
+            Main.properties.setProperty(prefix+".count", Integer.toString(threads));
+            Main.properties.setProperty(prefix+".rates", rates.toString());
+            Main.properties.setProperty(prefix+".system", system);
+            Main.saveProperties();
+        }
+        return threads;
+    }
+
+    /**
+     * Select the fastest engine for an algorithm
+     *
+     * @param       algorithm       Hash algorithm
+     * @param       threads         Number of CPU threads
+     * @return                      Hash engine
+     * @throws      IllegalArgumentException    Algorithm is not supported
+     */
+    private static HashEngine selectEngine(int algorithm, int threads) {
+        //
+        // Check each candidate using the known-answer tests.  A candidate that is not
+        // available on this system is skipped.
+        //
+        List<HashEngine> engines = new ArrayList<>();
+        for (HashEngine engine : getCandidates(algorithm)) {
+            try {
+                if (engine.verify())
+                    engines.add(engine);
+                else
+                    log.error(String.format("%s failed the known-answer tests", engine));
+            } catch (IllegalStateException exc) {
+                log.info(String.format("%s is not available: %s", engine, exc.getMessage()));
+            }
+        }
+        if (engines.isEmpty())
+            throw new IllegalArgumentException("CPU hash algorithm "+algorithm+" is not supported");
+        if (engines.size() == 1) {
+            log.info(String.format("Using %s", engines.get(0)));
+            return engines.get(0);
+        }
+        //
+        // Use the saved selection if the system and the available candidates have not changed
+        //
+        StringBuilder names = new StringBuilder();
+        for (HashEngine engine : engines)
+            names.append(names.length() > 0 ? "/" : "").append(engine.name);
+        String system = String.format("%s,%s,%s,%d,%d,%s", System.getProperty("java.vm.name"),
+                                      System.getProperty("java.version"), System.getProperty("os.arch"),
+                                      Runtime.getRuntime().availableProcessors(), threads, names);
+        String prefix = "hash.engine."+algorithm;
+        if (Main.properties != null && system.equals(Main.properties.getProperty(prefix+".system"))) {
+            String savedName = Main.properties.getProperty(prefix+".name");
+            for (HashEngine engine : engines) {
+                if (engine.name.equals(savedName)) {
+                    log.info(String.format("Using %s (saved rates %s MH/s)", engine,
+                                           Main.properties.getProperty(prefix+".rates")));
+                    return engine;
+                }
+            }
+        }
+        //
+        // Measure the total hash rate for each candidate
+        //
+        log.info(String.format("Measuring %d hash engines for algorithm %d using %d CPU threads",
+                               engines.size(), algorithm, threads));
+        HashEngine bestEngine = engines.get(0);
+        double bestRate = 0;
+        StringBuilder rates = new StringBuilder();
+        try {
+            for (HashEngine engine : engines) {
+                double rate = engine.measureRate(threads, WARMUP_TIME, MEASUREMENT_TIME);
+                log.info(String.format("%s: %,.3f MH/s", engine, rate/1.0e6));
+                if (rates.length() > 0)
+                    rates.append(',');
+                rates.append(String.format("%s=%.3f", engine.name, rate/1.0e6));
+                if (rate > bestRate) {
+                    bestRate = rate;
+                    bestEngine = engine;
+                }
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            log.warn(String.format("Hash engine measurement interrupted, using %s", bestEngine));
+            return bestEngine;
+        }
+        log.info(String.format("Using %s", bestEngine));
+        if (Main.properties != null) {
+            Main.properties.setProperty(prefix+".name", bestEngine.name);
+            Main.properties.setProperty(prefix+".rates", rates.toString());
+            Main.properties.setProperty(prefix+".system", system);
+            Main.saveProperties();
+        }
+        return bestEngine;
+    }
+
+    /**
+     * Check the engine using the known-answer tests
+     *
+     * @return                      TRUE if the engine passed the tests
+     * @throws      IllegalStateException   Engine is not available on this system
+     */
+    boolean verify() {
+        HashFunction hashFunction = create();
+        byte[] inputBytes = new byte[40];
+        for (int i=8; i<40; i++)
+            inputBytes[i] = (byte)i;
+        for (String[] knownAnswer : knownAnswers) {
+            if (Integer.parseInt(knownAnswer[0]) != algorithm)
+                continue;
+            long firstNonce = Long.parseUnsignedLong(knownAnswer[1], 16);
+            long solutionNonce = Long.parseUnsignedLong(knownAnswer[2], 16);
+            byte[] expected = new byte[32];
+            for (int i=0; i<32; i++)
+                expected[i] = (byte)Integer.parseInt(knownAnswer[3].substring(i*2, i*2+2), 16);
+            int count = (int)(solutionNonce - firstNonce) + 1;
+            hashFunction.setInput(inputBytes, expected);
+            if (!hashFunction.hash(firstNonce, count+2, () -> false) || hashFunction.getNonce() != solutionNonce ||
+                    hashFunction.getCount() != count || !Arrays.equals(hashFunction.digest, expected))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Measure the total hash rate using the specified number of threads
+     *
+     * @param       threads         Number of threads
+     * @param       warmupTime      Warm-up time in milliseconds
+     * @param       measurementTime Measurement time in milliseconds
+     * @return                      Total hashes per second
+     * @throws      InterruptedException    Measurement interrupted
+     */
+    private double measureRate(int threads, long warmupTime, long measurementTime) throws InterruptedException {
+        HashFunction[] hashFunctions = new HashFunction[threads];
+        for (int i=0; i<threads; i++)
+            hashFunctions[i] = create();
+        HashFunction.measureRate(hashFunctions, warmupTime);
+        return HashFunction.measureRate(hashFunctions, measurementTime);
+    }
+
+    /**
+     * Create a vector SHA-256 hash function
+     *
+     * The vector implementation is in the Java 17 part of the multi-release jar and
+     * needs the jdk.incubator.vector module.
+     *
+     * @return                      Hash function
+     * @throws      IllegalStateException   Vector SHA-256 is not available
+     */
+    private static HashFunction createVectorSha256() {
+        try {
+            return (HashFunction)Class.forName("org.ScripterRon.Nxt2Mint.HashSha256Vector")
+                                      .getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError exc) {
+            throw new IllegalStateException("Vector SHA-256 requires Java 17 and the jdk.incubator.vector module");
+        }
+    }
+}
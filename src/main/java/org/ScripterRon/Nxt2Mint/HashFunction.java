@@ -14,7 +14,9 @@
  * limitations under the License.
  */
 package org.ScripterRon.Nxt2Mint;
-import static org.ScripterRon.Nxt2Mint.Main.log;
+
+import java.util.function.BooleanSupplier;
+import java.util.function.IntFunction;
 
 /**
  * Currency minting hash functions using the CPU
@@ -40,28 +42,79 @@ public abstract class HashFunction {
     /**
      * Create a hash function for the specified algorithm
      *
+     * The hash engine for the algorithm is selected the first time the algorithm is used.
+     *
      * @param       algorithm       Hash algorithm
      * @return                      Hash function
+     * @throws      IllegalArgumentException    Algorithm is not supported
      */
     public static HashFunction factory(int algorithm) {
-        HashFunction hashFunction;
-        switch (algorithm) {
-            case 2:                 // SHA256
-                hashFunction = new HashSha256();
-                break;
-            case 3:                 // SHA3
-                hashFunction = new HashSha3();
-                break;
-            case 5:                 // SCRYPT
-                hashFunction = new HashScrypt();
-                break;
-            case 25:                // KECCAK25
-                hashFunction = new HashKnv25();
-                break;
-            default:
-                throw new IllegalArgumentException("CPU hash algorithm "+algorithm+" is not supported");
+        if (!isSupported(algorithm))
+            throw new IllegalArgumentException("CPU hash algorithm "+algorithm+" is not supported");
+        return HashEngine.getEngine(algorithm).create();
+    }
+
+    /**
+     * Measure the total hash rate for a set of hash functions
+     *
+     * Each hash function is run on a separate thread for the measurement time.  The
+     * input data and the target are all zeroes, so the target is never met.
+     *
+     * @param       hashFunctions   Hash functions
+     * @param       millis          Measurement time in milliseconds
+     * @return                      Total hashes per second
+     * @throws      InterruptedException    Measurement interrupted
+     */
+    static double measureRate(HashFunction[] hashFunctions, long millis) throws InterruptedException {
+        return measureRate(hashFunctions.length, (index) -> hashFunctions[index], millis);
+    }
+
+    /**
+     * Measure the total hash rate for a set of threads
+     *
+     * The hash function for each thread is obtained on the thread itself, so the factory
+     * can set the thread affinity before the hash function allocates its memory.
+     *
+     * @param       threads         Number of threads
+     * @param       factory         Hash function factory (called with the thread index)
+     * @param       millis          Measurement time in milliseconds
+     * @return                      Total hashes per second
+     * @throws      InterruptedException    Measurement interrupted
+     */
+    static double measureRate(int threads, IntFunction<HashFunction> factory, long millis)
+                                        throws InterruptedException {
+        long[] counts = new long[threads];
+        Thread[] hashThreads = new Thread[threads];
+        for (int i=0; i<threads; i++) {
+            int index = i;
+            hashThreads[i] = new Thread(() -> {
+                HashFunction hashFunction = factory.apply(index);
+                hashFunction.setInput(new byte[40], new byte[32]);
+                Thread thread = Thread.currentThread();
+                long firstNonce = (long)index << 56;
+                while (!thread.isInterrupted()) {
+                    hashFunction.hash(firstNonce, 1024*1024, thread::isInterrupted);
+                    counts[index] += hashFunction.getCount();
+                    firstNonce += hashFunction.getCount();
+                }
+            });
+        }
+        long startTime = System.nanoTime();
+        for (Thread thread : hashThreads)
+            thread.start();
+        try {
+            Thread.sleep(millis);
+        } finally {
+            for (Thread thread : hashThreads)
+                thread.interrupt();
+            for (Thread thread : hashThreads)
+                thread.join();
         }
-        return hashFunction;
+        long elapsedTime = System.nanoTime() - startTime;
+        long count = 0;
+        for (long threadCount : counts)
+            count += threadCount;
+        return (double)count / ((double)elapsedTime / 1.0e9);
     }
 
     /**
@@ -75,14 +128,32 @@ public abstract class HashFunction {
     }
 
     /**
-     * Hash the input bytes
+     * Set the input data and the hash target
      *
-     * @param       input           Input bytes
-     * @param       target          Target bytes
-     * @param       nonce           Initial nonce
+     * The input data and the target are the same for every nonce hashed for a minting
+     * counter, so the values that do not depend on the nonce are computed here.  The
+     * nonce in bytes 0-7 of the input data is ignored.
+     *
+     * @param       input           Input bytes (40 bytes)
+     * @param       target          Target bytes (32 bytes)
+     */
+    public abstract void setInput(byte[] input, byte[] target);
+
+    /**
+     * Hash a range of nonces
+     *
+     * Hashing stops when the target is met, when all of the nonces have been hashed or
+     * when the cancel check returns TRUE.  The cancel check is called before the first hash
+     * and then at a fixed interval chosen by the hash function, so it must be inexpensive.
+     * getCount() returns the number of nonces hashed and getNonce() returns the nonce
+     * that met the target.
+     *
+     * @param       firstNonce      First nonce
+     * @param       count           Number of nonces
+     * @param       cancel          Cancel check
      * @return                      TRUE if the target was met
      */
-    public abstract boolean hash(byte[] input, byte[] target, long nonce);
+    public abstract boolean hash(long firstNonce, int count, BooleanSupplier cancel);
 
     /**
      * Return the nonce used to solve the hash
@@ -94,11 +165,56 @@ public abstract class HashFunction {
     }
 
     /**
-     * Return the execution count
+     * Return the number of nonces hashed by the last call to hash()
      *
-     * @return                      Kernel execution count
+     * @return                      Hash count
      */
     public int getCount() {
         return hashCount;
     }
+
+    /**
+     * Check if a SHA-256 digest meets the target
+     *
+     * The digest bytes are the big-endian state words while the target words are
+     * little-endian, so each state word is byte-reversed before it is compared.
+     *
+     * @param       state           SHA-256 state words
+     * @param       targetWords     Target words (least significant word first)
+     * @return                      TRUE if the target is met
+     */
+    static boolean meetsTarget(int[] state, int[] targetWords) {
+        int cmp = 0;
+        for (int i=7; i>=0 && cmp==0; i--)
+            cmp = Integer.compareUnsigned(Integer.reverseBytes(state[i]), targetWords[i]);
+        return (cmp <= 0);
+    }
+
+    /**
+     * Check if a Keccak digest meets the target
+     *
+     * The digest and the target are unsigned 32-byte little-endian numbers, so lane 3
+     * is the most significant digest word.
+     *
+     * @param       state0          Lane 0
+     * @param       state1          Lane 1
+     * @param       state2          Lane 2
+     * @param       state3          Lane 3
+     * @param       target0         Target word 0
+     * @param       target1         Target word 1
+     * @param       target2         Target word 2
+     * @param       target3         Target word 3
+     * @return                      TRUE if the target is met
+     */
+    static boolean meetsTarget(long state0, long state1, long state2, long state3,
+                               long target0, long target1, long target2, long target3) {
+        int cmp = Long.compareUnsigned(state3, target3);
+        if (cmp == 0)
+            cmp = Long.compareUnsigned(state2, target2);
+        if (cmp == 0)
+            cmp = Long.compareUnsigned(state1, target1);
+        if (cmp == 0)
+            cmp = Long.compareUnsigned(state0, target0);
+        return (cmp <= 0);
+    }
 }
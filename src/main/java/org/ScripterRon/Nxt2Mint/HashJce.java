@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * SHA256 and SHA3 hash functions using the Java cryptography provider
+ *
+ * The provider digest is slower than the hand-coded hash functions on most systems, but
+ * the JVM can replace the SHA-256 compression function with an intrinsic that uses the
+ * processor SHA instructions when they are available.  SHA3-256 requires Java 9 or later.
+ */
+public class HashJce extends HashFunction {
+
+    /** Number of hashes between cancel checks (must be a power of 2) */
+    private static final int CANCEL_INTERVAL = 1024;
+
+    /** Message digest */
+    private final MessageDigest md;
+
+    /** Input bytes */
+    private final byte[] inputBytes = new byte[40];
+
+    /** Target bytes */
+    private final byte[] targetBytes = new byte[32];
+
+    /** Output bytes */
+    private final byte[] output = new byte[32];
+
+    /**
+     * Create a provider hash function
+     *
+     * @param       algorithm       Hash algorithm (2 or 3)
+     */
+    public HashJce(int algorithm) {
+        String digestName;
+        switch (algorithm) {
+            case 2:                 // SHA256
+                digestName = "SHA-256";
+                break;
+            case 3:                 // SHA3
+                digestName = "SHA3-256";
+                break;
+            default:
+                throw new IllegalArgumentException("Provider digest does not support algorithm "+algorithm);
+        }
+        try {
+            md = MessageDigest.getInstance(digestName);
+        } catch (NoSuchAlgorithmException exc) {
+            throw new IllegalStateException("Unable to get "+digestName+" digest", exc);
+        }
+    }
+
+    /**
+     * Set the input data and the hash target
+     *
+     * @param       input           Input bytes (40 bytes)
+     * @param       target          Target bytes (32 bytes)
+     */
+    @Override
+    public void setInput(byte[] input, byte[] target) {
+        System.arraycopy(input, 0, inputBytes, 0, 40);
+        System.arraycopy(target, 0, targetBytes, 0, 32);
+    }
+
+    /**
+     * Hash a range of nonces
+     *
+     * @param       firstNonce      First nonce
+     * @param       count           Number of nonces
+     * @param       cancel          Cancel check (called every 1024 hashes)
+     * @return                      TRUE if the target was met
+     */
+    @Override
+    public boolean hash(long firstNonce, int count, BooleanSupplier cancel) {
+        nonce = firstNonce - 1;
+        hashCount = 0;
+        boolean meetsTarget = false;
+        //
+        // Keep hashing until we meet the target, hash all of the nonces or are cancelled
+        //
+        for (int i=0; i<count && !meetsTarget; i++) {
+            if ((i & (CANCEL_INTERVAL-1)) == 0 && cancel.getAsBoolean())
+                break;
+            //
+            // The nonce is stored in the first 8 bytes of the input data
+            //
+            nonce++;
+            inputBytes[0] = (byte)nonce;
+            inputBytes[1] = (byte)(nonce>>8);
+            inputBytes[2] = (byte)(nonce>>16);
+            inputBytes[3] = (byte)(nonce>>24);
+            inputBytes[4] = (byte)(nonce>>32);
+            inputBytes[5] = (byte)(nonce>>40);
+            inputBytes[6] = (byte)(nonce>>48);
+            inputBytes[7] = (byte)(nonce>>56);
+            //
+            // Do the hash
+            //
+            md.update(inputBytes);
+            try {
+                md.digest(output, 0, 32);
+            } catch (DigestException exc) {
+                throw new IllegalStateException("Unable to compute digest", exc);
+            }
+            hashCount++;
+            //
+            // Check if we have met the target
+            //
+            meetsTarget = true;
+            for (int j=31; j>=0; j--) {
+                int b0 = (int)output[j]&0xff;
+                int b1 = (int)targetBytes[j]&0xff;
+                if (b0 < b1)
+                    break;
+                if (b0 > b1) {
+                    meetsTarget = false;
+                    break;
+                }
+            }
+            if (meetsTarget)
+                System.arraycopy(output, 0, digest, 0, 32);
+        }
+        return meetsTarget;
+    }
+}
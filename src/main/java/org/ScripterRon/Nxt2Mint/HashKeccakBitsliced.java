@@ -0,0 +1,333 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Bitsliced Keccak hash function for SHA3 and KECCAK25
+ *
+ * The state is stored as 64 bit slices for each of the 25 Keccak lanes.  Bit n of a slice
+ * belongs to instance n, so each pass through the permutation hashes 64 consecutive nonces.
+ * Rotations become index changes and the theta, chi and iota steps work on 64 instances
+ * at a time.  The target is checked in bitsliced form and only the instances that meet
+ * the target are converted back to normal form.
+ */
+public class HashKeccakBitsliced extends HashFunction {
+
+    /** Round constants */
+    private static final long[] constants = {
+        1L, 32898L, -9223372036854742902L, -9223372034707259392L, 32907L,
+        2147483649L, -9223372034707259263L, -9223372036854743031L, 138L, 136L,
+        2147516425L, 2147483658L, 2147516555L, -9223372036854775669L, -9223372036854742903L,
+        -9223372036854743037L, -9223372036854743038L, -9223372036854775680L, 32778L, -9223372034707292150L,
+        -9223372034707259263L, -9223372036854742912L, 2147483649L, -9223372034707259384L, 1L
+    };
+
+    /** Rotation offset for each lane */
+    private static final int[] rotations = {
+        0, 1, 62, 28, 27,
+        36, 44, 6, 55, 20,
+        3, 10, 43, 25, 39,
+        41, 45, 15, 21, 8,
+        18, 2, 61, 56, 14
+    };
+
+    /** Source lane for each destination lane of the rho and pi steps */
+    private static final int[] piSource = new int[25];
+    static {
+        for (int x=0; x<5; x++) {
+            for (int y=0; y<5; y++)
+                piSource[y + 5*((2*x + 3*y) % 5)] = x + 5*y;
+        }
+    }
+
+    /** Number of hashes between cancel checks (must be a power of 2 and a multiple of 64) */
+    private static final int CANCEL_INTERVAL = 1024;
+
+    /** Number of rounds (24 for SHA3 and 25 for KECCAK25) */
+    private final int rounds;
+
+    /** Padding stored in lane 5 */
+    private final long padding;
+
+    /** Bitsliced state (indexed by lane and bit) */
+    private final long[][] state = new long[25][64];
+
+    /** Bitsliced state following the rho and pi steps */
+    private final long[][] work = new long[25][64];
+
+    /** Theta column parities */
+    private final long[][] parity = new long[5][64];
+
+    /** Theta column adjustments */
+    private final long[][] adjust = new long[5][64];
+
+    /** Initial state for lanes 1-24 */
+    private final long[][] initialState = new long[25][64];
+
+    /** Target words */
+    private final long[] targetWords = new long[4];
+
+    /**
+     * Create a bitsliced Keccak hash function
+     *
+     * @param       algorithm       Hash algorithm (3 or 25)
+     */
+    public HashKeccakBitsliced(int algorithm) {
+        super();
+        switch (algorithm) {
+            case 3:                 // SHA3
+                rounds = 24;
+                padding = 6;
+                break;
+            case 25:                // KECCAK25
+                rounds = 25;
+                padding = 1;
+                break;
+            default:
+                throw new IllegalArgumentException("Bitsliced Keccak does not support algorithm "+algorithm);
+        }
+    }
+
+    /**
+     * Set the input data and the hash target
+     *
+     * @param       inputBytes      Input bytes (40 bytes)
+     * @param       targetBytes     Target bytes (32 bytes)
+     */
+    @Override
+    public void setInput(byte[] inputBytes, byte[] targetBytes) {
+        //
+        // The input words are the same for every nonce, so each bit slice is either all
+        // zeroes or all ones
+        //
+        for (int lane=1; lane<25; lane++) {
+            long value;
+            if (lane < 5)
+                value = getLong(inputBytes, lane*8);
+            else if (lane == 5)
+                value = padding;
+            else if (lane == 16)
+                value = -9223372036854775808L;
+            else
+                value = 0;
+            for (int bit=0; bit<64; bit++)
+                initialState[lane][bit] = -((value >>> bit) & 1);
+        }
+        for (int i=0; i<4; i++)
+            targetWords[i] = getLong(targetBytes, i*8);
+    }
+
+    /**
+     * Hash a range of nonces
+     *
+     * @param       firstNonce      First nonce
+     * @param       count           Number of nonces
+     * @param       cancel          Cancel check (called every 1024 hashes)
+     * @return                      TRUE if the target was met
+     */
+    @Override
+    public boolean hash(long firstNonce, int count, BooleanSupplier cancel) {
+        boolean meetsTarget = false;
+        nonce = firstNonce - 1;
+        hashCount = 0;
+        //
+        // Keep hashing until we meet the target, hash all of the nonces or are cancelled
+        //
+        while (hashCount < count && !meetsTarget) {
+            if ((hashCount & (CANCEL_INTERVAL-1)) == 0 && cancel.getAsBoolean())
+                break;
+            int instances = Math.min(count - hashCount, 64);
+            meetsTarget = doHash(instances);
+            hashCount += instances;
+        }
+        //
+        // Don't count the nonces following the solution
+        //
+        if (meetsTarget)
+            hashCount = (int)(nonce - firstNonce + 1);
+        return meetsTarget;
+    }
+
+    /**
+     * Hash the next 64 nonces
+     *
+     * All 64 instances are always hashed but only the first 'instances' are checked
+     * against the target.
+     *
+     * @param       instances       Number of instances to check (1-64)
+     * @return                      TRUE if the target is met
+     */
+    private boolean doHash(int instances) {
+        //
+        // Instance n hashes nonce+n+1.  The low-order 6 bits are different for each instance
+        // and the remaining bits are either the high-order bits of the first nonce or those
+        // bits plus 1 if the low-order bits wrapped around.
+        //
+        long firstNonce = nonce + 1;
+        int low = (int)firstNonce & 63;
+        long high = firstNonce >>> 6;
+        long carryMask = (low == 0 ? 0 : -1L << (64 - low));
+        for (int lane=1; lane<25; lane++)
+            System.arraycopy(initialState[lane], 0, state[lane], 0, 64);
+        long[] lane0 = state[0];
+        for (int bit=0; bit<6; bit++)
+            lane0[bit] = 0;
+        for (int n=0; n<64; n++) {
+            int value = (low + n) & 63;
+            for (int bit=0; bit<6; bit++)
+                lane0[bit] |= (long)((value >>> bit) & 1) << n;
+        }
+        for (int bit=6; bit<64; bit++)
+            lane0[bit] = (-((high >>> (bit-6)) & 1) & ~carryMask) |
+                         (-(((high + 1) >>> (bit-6)) & 1) & carryMask);
+        //
+        // Calculate the hash digests
+        //
+        for (int round=0; round<rounds; round++)
+            doRound(round, round == rounds-1);
+        //
+        // Compare digest words 3-0 with the target starting with the most significant bit.
+        // An instance is decided as soon as its bit differs from the target bit.
+        //
+        long greaterMask = 0;
+        long equalMask = -1L;
+        for (int word=3; word>=0 && equalMask!=0; word--) {
+            long targetWord = targetWords[word];
+            for (int bit=63; bit>=0 && equalMask!=0; bit--) {
+                long slice = state[word][bit];
+                if (((targetWord >>> bit) & 1) != 0) {
+                    equalMask &= slice;
+                } else {
+                    greaterMask |= equalMask & slice;
+                    equalMask &= ~slice;
+                }
+            }
+        }
+        long solvedMask = ~greaterMask;
+        if (instances < 64)
+            solvedMask &= (1L << instances) - 1;
+        if (solvedMask == 0) {
+            nonce += instances;
+            return false;
+        }
+        //
+        // Build the digest for the first instance that met the target
+        //
+        int solved = Long.numberOfTrailingZeros(solvedMask);
+        nonce += solved + 1;
+        for (int word=0; word<4; word++) {
+            long value = 0;
+            for (int bit=0; bit<64; bit++)
+                value |= ((state[word][bit] >>> solved) & 1) << bit;
+            for (int i=0; i<8; i++)
+                digest[word*8+i] = (byte)(value >>> (i*8));
+        }
+        return true;
+    }
+
+    /**
+     * Perform a Keccak round
+     *
+     * Only lanes 0-3 are needed for the final round since the rest of the state
+     * is not part of the digest.
+     *
+     * @param       round           Round number
+     * @param       finalRound      TRUE if this is the final round
+     */
+    private void doRound(int round, boolean finalRound) {
+        //
+        // Theta: compute the column parities and the adjustment for each column
+        //
+        for (int x=0; x<5; x++) {
+            long[] c = parity[x];
+            long[] a0 = state[x];
+            long[] a1 = state[x+5];
+            long[] a2 = state[x+10];
+            long[] a3 = state[x+15];
+            long[] a4 = state[x+20];
+            for (int z=0; z<64; z++)
+                c[z] = a0[z] ^ a1[z] ^ a2[z] ^ a3[z] ^ a4[z];
+        }
+        for (int x=0; x<5; x++) {
+            long[] d = adjust[x];
+            long[] left = parity[(x+4) % 5];
+            long[] right = parity[(x+1) % 5];
+            d[0] = left[0] ^ right[63];
+            for (int z=1; z<64; z++)
+                d[z] = left[z] ^ right[z-1];
+        }
+        //
+        // Theta, rho and pi: apply the column adjustment and rotate the source lane
+        // while moving it to the destination lane
+        //
+        int lanes = (finalRound ? 5 : 25);
+        for (int dest=0; dest<lanes; dest++) {
+            int source = piSource[dest];
+            int r = rotations[source];
+            long[] b = work[dest];
+            long[] a = state[source];
+            long[] d = adjust[source % 5];
+            for (int z=r; z<64; z++)
+                b[z] = a[z-r] ^ d[z-r];
+            for (int z=0; z<r; z++)
+                b[z] = a[z+64-r] ^ d[z+64-r];
+        }
+        //
+        // Chi
+        //
+        int planes = (finalRound ? 1 : 5);
+        for (int y=0; y<planes; y++) {
+            for (int x=0; x<5; x++) {
+                long[] a = state[x+5*y];
+                long[] b0 = work[x+5*y];
+                long[] b1 = work[(x+1) % 5 + 5*y];
+                long[] b2 = work[(x+2) % 5 + 5*y];
+                for (int z=0; z<64; z++)
+                    a[z] = b0[z] ^ (~b1[z] & b2[z]);
+            }
+        }
+        //
+        // Iota: complement the lane 0 slices for the bits set in the round constant
+        //
+        long[] a = state[0];
+        long constant = constants[round];
+        while (constant != 0) {
+            int z = Long.numberOfTrailingZeros(constant);
+            a[z] = ~a[z];
+            constant &= constant - 1;
+        }
+    }
+
+    /**
+     * Get a little-endian long value
+     *
+     * @param       bytes           Byte array
+     * @param       offset          Starting offset
+     * @return                      Long value
+     */
+    private static long getLong(byte[] bytes, int offset) {
+        return ((long)bytes[offset] & 0xFF) |
+                (((long)bytes[offset+1] & 0xFF) << 8) |
+                (((long)bytes[offset+2] & 0xFF) << 16) |
+                (((long)bytes[offset+3] & 0xFF) << 24) |
+                (((long)bytes[offset+4] & 0xFF) << 32) |
+                (((long)bytes[offset+5] & 0xFF) << 40) |
+                (((long)bytes[offset+6] & 0xFF) << 48) |
+                (((long)bytes[offset+7] & 0xFF) << 56);
+    }
+}
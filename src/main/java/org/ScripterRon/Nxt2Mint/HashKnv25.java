@@ -16,6 +16,8 @@
 package org.ScripterRon.Nxt2Mint;
 import static org.ScripterRon.Nxt2Mint.Main.log;
 
+import java.util.function.BooleanSupplier;
+
 /**
  * KECCAK25 hash algorithm for Monetary System currencies
  *
@@ -32,11 +34,26 @@ public class HashKnv25 extends HashFunction {
         -9223372034707259263L, -9223372036854742912L, 2147483649L, -9223372034707259384L, 1L
     };
 
-    /** Input data */
-    private final byte[] input = new byte[40];
+    /** Keccak padding following the data (stored in lane 5) */
+    private static final long PADDING = 1L;
+
+    /** Number of hashes between cancel checks (must be a power of 2) */
+    private static final int CANCEL_INTERVAL = 1024;
+
+    /** Input data words 1-4 (word 0 is the nonce) */
+    private long input1, input2, input3, input4;
+
+    /** Target words */
+    private long target0, target1, target2, target3;
 
-    /** Target data */
-    private final byte[] target = new byte[32];
+    /** First round theta adjustments for the nonce lanes */
+    private long theta0, theta1, theta4;
+
+    /** First round lanes that do not depend on the nonce (after theta, rho and pi) */
+    private long b2, b3, b5, b7, b9, b11, b12, b14, b16, b18, b19, b20, b21, b23;
+
+    /** First round chi terms that do not depend on the nonce */
+    private long chi1, chi8, chi10, chi17, chi24;
 
     /**
      * Create a new KECCAK25 hash function
@@ -46,26 +63,88 @@ public class HashKnv25 extends HashFunction {
     }
 
     /**
-     * Hash the input bytes
+     * Set the input data and the hash target
+     *
+     * Keccak pads the message with 0x01 following the data and sets the high-order bit
+     * of the last byte in the 136-byte block (lane 16).
+     *
+     * Only lane 0 of the initial state contains the nonce.  The theta step spreads it
+     * to columns 1 and 4, so the first round lanes coming from columns 0, 2 and 3 (other
+     * than lane 0 itself) are the same for every nonce.
+     *
      * @param       inputBytes      Input bytes (40 bytes)
-     * @param       targetBytes     Target bytes (32 bytes)
-     * @param       initialNonce    Initial nonce
-     * @return                      TRUE if the target is met
+     * @param       targetBytes     Target (32 bytes)
+     */
+    @Override
+    public void setInput(byte[] inputBytes, byte[] targetBytes) {
+        input1 = getLong(inputBytes, 8);
+        input2 = getLong(inputBytes, 16);
+        input3 = getLong(inputBytes, 24);
+        input4 = getLong(inputBytes, 32);
+        target0 = getLong(targetBytes, 0);
+        target1 = getLong(targetBytes, 8);
+        target2 = getLong(targetBytes, 16);
+        target3 = getLong(targetBytes, 24);
+        //
+        // Theta adjustments for columns 0, 2 and 3 and the constant parts of the
+        // adjustments for columns 1 and 4
+        //
+        long c1 = input1 ^ -9223372036854775808L;
+        long d0 = input4 ^ ((c1 << 1) | (c1 >>> (64-1)));
+        long d2 = c1 ^ ((input3 << 1) | (input3 >>> (64-1)));
+        long d3 = input2 ^ ((input4 << 1) | (input4 >>> (64-1)));
+        theta0 = d0;
+        theta1 = PADDING ^ ((input2 << 1) | (input2 >>> (64-1)));
+        theta4 = input3 ^ (PADDING << 1);
+        //
+        // Rho and pi for the lanes that do not depend on the nonce
+        //
+        long t;
+        b2 = (d2 << 43) | (d2 >>> (64-43));
+        b3 = (d3 << 21) | (d3 >>> (64-21));
+        t = input3 ^ d3;
+        b5 = (t << 28) | (t >>> (64-28));
+        b7 = (d0 << 3) | (d0 >>> (64-3));
+        b9 = (d2 << 61) | (d2 >>> (64-61));
+        b11 = (d2 << 6) | (d2 >>> (64-6));
+        b12 = (d3 << 25) | (d3 >>> (64-25));
+        b14 = (d0 << 18) | (d0 >>> (64-18));
+        t = PADDING ^ d0;
+        b16 = (t << 36) | (t >>> (64-36));
+        b18 = (d2 << 15) | (d2 >>> (64-15));
+        b19 = (d3 << 56) | (d3 >>> (64-56));
+        t = input2 ^ d2;
+        b20 = (t << 62) | (t >>> (64-62));
+        b21 = (d3 << 55) | (d3 >>> (64-55));
+        b23 = (d0 << 41) | (d0 >>> (64-41));
+        //
+        // Chi terms where both lanes do not depend on the nonce
+        //
+        chi1 = ~b2 & b3;
+        chi8 = ~b9 & b5;
+        chi10 = ~b11 & b12;
+        chi17 = ~b18 & b19;
+        chi24 = ~b20 & b21;
+    }
+
+    /**
+     * Hash a range of nonces
+     *
+     * @param       firstNonce      First nonce
+     * @param       count           Number of nonces
+     * @param       cancel          Cancel check (called every 1024 hashes)
+     * @return                      TRUE if the target was met
      */
     @Override
-    public boolean hash(byte[] inputBytes, byte[] targetBytes, long initialNonce) {
-        int count = 1024*1024;
+    public boolean hash(long firstNonce, int count, BooleanSupplier cancel) {
         boolean meetsTarget = false;
-        System.arraycopy(inputBytes, 0, input, 0, 40);
-        System.arraycopy(targetBytes, 0, target, 0, 32);
-        nonce = initialNonce;
+        nonce = firstNonce - 1;
         hashCount = 0;
-        Thread thread = Thread.currentThread();
         //
-        // Keep hashing until we meet the target or the maximum loop count is reached
+        // Keep hashing until we meet the target, hash all of the nonces or are cancelled
         //
         for (int i=0; i<count && !meetsTarget; i++) {
-            if (thread.isInterrupted())
+            if ((i & (CANCEL_INTERVAL-1)) == 0 && cancel.getAsBoolean())
                 break;
             meetsTarget = doHash();
             hashCount++;
@@ -79,56 +158,60 @@ public class HashKnv25 extends HashFunction {
      * @return                      TRUE if the target is met
      */
     private boolean doHash() {
-        //
-        // Initialize the hash state
         //
         // Note that the nonce is stored in the first 8 bytes of the input data.  We will increment
         // it each time through the hash loop.
         //
+        // First round: the nonce-independent lanes and chi terms were computed by setInput()
+        //
         nonce++;
-        long state0 = nonce;
-        long state1 = ((long)input[8] & 0xFF) |
-                        (((long)input[9] & 0xFF) << 8) |
-                        (((long)input[10] & 0xFF) << 16) |
-                        (((long)input[11] & 0xFF) << 24) |
-                        (((long)input[12] & 0xFF) << 32) |
-                        (((long)input[13] & 0xFF) << 40) |
-                        (((long)input[14] & 0xFF) << 48) |
-                        (((long)input[15] & 0xFF) << 56);
-        long state2 = ((long)input[16] & 0xFF) |
-                        (((long)input[17] & 0xFF) << 8) |
-                        (((long)input[18] & 0xFF) << 16) |
-                        (((long)input[19] & 0xFF) << 24) |
-                        (((long)input[20] & 0xFF) << 32) |
-                        (((long)input[21] & 0xFF) << 40) |
-                        (((long)input[22] & 0xFF) << 48) |
-                        (((long)input[23] & 0xFF) << 56);
-        long state3 = ((long)input[24] & 0xFF) |
-                        (((long)input[25] & 0xFF) << 8) |
-                        (((long)input[26] & 0xFF) << 16) |
-                        (((long)input[27] & 0xFF) << 24) |
-                        (((long)input[28] & 0xFF) << 32) |
-                        (((long)input[29] & 0xFF) << 40) |
-                        (((long)input[30] & 0xFF) << 48) |
-                        (((long)input[31] & 0xFF) << 56);
-        long state4 = ((long)input[32] & 0xFF) |
-                        (((long)input[33] & 0xFF) << 8) |
-                        (((long)input[34] & 0xFF) << 16) |
-                        (((long)input[35] & 0xFF) << 24) |
-                        (((long)input[36] & 0xFF) << 32) |
-                        (((long)input[37] & 0xFF) << 40) |
-                        (((long)input[38] & 0xFF) << 48) |
-                        (((long)input[39] & 0xFF) << 56);
-        long state5 = 1;
-        long state16 = -9223372036854775808L;
-        long state6=0, state7=0, state8=0, state9=0, state10=0, state11=0, state12=0,
-                state13=0, state14=0, state15=0, state17=0, state18=0, state19=0,
-                state20=0, state21=0, state22=0, state23=0, state24=0;
+        long t;
+        long u = nonce ^ theta1;
+        long v = ((nonce << 1) | (nonce >>> (64-1))) ^ theta4;
+        long b0 = nonce ^ theta0;
+        long b1 = (u << 44) | (u >>> (64-44));
+        long b4 = (v << 14) | (v >>> (64-14));
+        long b6 = (v << 20) | (v >>> (64-20));
+        t = u ^ -9223372036854775808L;
+        long b8 = (t << 45) | (t >>> (64-45));
+        t = u ^ input1;
+        long b10 = (t << 1) | (t >>> (64-1));
+        long b13 = (v << 8) | (v >>> (64-8));
+        t = v ^ input4;
+        long b15 = (t << 27) | (t >>> (64-27));
+        long b17 = (u << 10) | (u >>> (64-10));
+        long b22 = (v << 39) | (v >>> (64-39));
+        long b24 = (u << 2) | (u >>> (64-2));
+        long state0 = b0 ^ (~b1 & b2) ^ constants[0];
+        long state1 = b1 ^ chi1;
+        long state2 = b2 ^ (~b3 & b4);
+        long state3 = b3 ^ (~b4 & b0);
+        long state4 = b4 ^ (~b0 & b1);
+        long state5 = b5 ^ (~b6 & b7);
+        long state6 = b6 ^ (~b7 & b8);
+        long state7 = b7 ^ (~b8 & b9);
+        long state8 = b8 ^ chi8;
+        long state9 = b9 ^ (~b5 & b6);
+        long state10 = b10 ^ chi10;
+        long state11 = b11 ^ (~b12 & b13);
+        long state12 = b12 ^ (~b13 & b14);
+        long state13 = b13 ^ (~b14 & b10);
+        long state14 = b14 ^ (~b10 & b11);
+        long state15 = b15 ^ (~b16 & b17);
+        long state16 = b16 ^ (~b17 & b18);
+        long state17 = b17 ^ chi17;
+        long state18 = b18 ^ (~b19 & b15);
+        long state19 = b19 ^ (~b15 & b16);
+        long state20 = b20 ^ (~b21 & b22);
+        long state21 = b21 ^ (~b22 & b23);
+        long state22 = b22 ^ (~b23 & b24);
+        long state23 = b23 ^ (~b24 & b20);
+        long state24 = b24 ^ chi24;
         //
-        // Calculate the hash digest
+        // Middle rounds
         //
         int i;
-        for (i=0; i<25;) {
+        for (i=1; i<24;) {
             long t1, t2, t3, t4, t5, t6, t7, t8, t9, t10, t11, t12, t13, t14, t15, t16, t17, t18, t19;
             t1 = state0 ^ state5 ^ state10 ^ state15 ^ state20;
             t2 = state2 ^ state7 ^ state12 ^ state17 ^ state22;
@@ -235,30 +318,30 @@ public class HashKnv25 extends HashFunction {
             state24 ^= ~t13 & t18;
         }
         //
+        // Final round: only state0-state3 are needed for the digest
+        //
+        long c0 = state0 ^ state5 ^ state10 ^ state15 ^ state20;
+        long c1 = state1 ^ state6 ^ state11 ^ state16 ^ state21;
+        long c2 = state2 ^ state7 ^ state12 ^ state17 ^ state22;
+        long c3 = state3 ^ state8 ^ state13 ^ state18 ^ state23;
+        long c4 = state4 ^ state9 ^ state14 ^ state19 ^ state24;
+        long f0 = state0 ^ c4 ^ ((c1 << 1) | (c1 >>> (64-1)));
+        t = state6 ^ c0 ^ ((c2 << 1) | (c2 >>> (64-1)));
+        long f1 = (t << 44) | (t >>> (64-44));
+        t = state12 ^ c1 ^ ((c3 << 1) | (c3 >>> (64-1)));
+        long f2 = (t << 43) | (t >>> (64-43));
+        t = state18 ^ c2 ^ ((c4 << 1) | (c4 >>> (64-1)));
+        long f3 = (t << 21) | (t >>> (64-21));
+        t = state24 ^ c3 ^ ((c0 << 1) | (c0 >>> (64-1)));
+        long f4 = (t << 14) | (t >>> (64-14));
+        state0 = f0 ^ (~f1 & f2) ^ constants[24];
+        state1 = f1 ^ (~f2 & f3);
+        state2 = f2 ^ (~f3 & f4);
+        state3 = f3 ^ (~f4 & f0);
+        //
         // Check if we met the target
         //
-        boolean isSolved = true;
-        long check;
-        checkLoop: for (i=3; i>=0; i--) {
-            if (i == 0)
-                check = state0;
-            else if (i == 1)
-                check = state1;
-            else if (i == 2)
-                check = state2;
-            else
-                check = state3;
-            for (int j=7; j>=0; j--) {
-                int b0 = (int)(check>>(j*8))&0xff;
-                int b1 = (int)(target[i*8+j])&0xff;
-                if (b0 < b1)
-                    break checkLoop;
-                if (b0 > b1) {
-                    isSolved = false;
-                    break checkLoop;
-                }
-            }
-        }
+        boolean isSolved = meetsTarget(state0, state1, state2, state3, target0, target1, target2, target3);
         //
         // Set the digest if we have a match
         //
@@ -298,4 +381,22 @@ public class HashKnv25 extends HashFunction {
         }
         return isSolved;
     }
+
+    /**
+     * Get a little-endian long value
+     *
+     * @param       bytes           Byte array
+     * @param       offset          Starting offset
+     * @return                      Long value
+     */
+    private static long getLong(byte[] bytes, int offset) {
+        return ((long)bytes[offset] & 0xFF) |
+                (((long)bytes[offset+1] & 0xFF) << 8) |
+                (((long)bytes[offset+2] & 0xFF) << 16) |
+                (((long)bytes[offset+3] & 0xFF) << 24) |
+                (((long)bytes[offset+4] & 0xFF) << 32) |
+                (((long)bytes[offset+5] & 0xFF) << 40) |
+                (((long)bytes[offset+6] & 0xFF) << 48) |
+                (((long)bytes[offset+7] & 0xFF) << 56);
+    }
 }
@@ -16,171 +16,395 @@
 package org.ScripterRon.Nxt2Mint;
 import static org.ScripterRon.Nxt2Mint.Main.log;
 
-import javax.crypto.Mac;
-import javax.crypto.ShortBufferException;
-import javax.crypto.spec.SecretKeySpec;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.util.function.BooleanSupplier;
 
 /**
  * SCRYPT hash algorithm for Monetary System currencies
  *
  * Distributed as part of the Nxt reference software (NRS)
+ *
+ * PBKDF2-HMAC-SHA256 is done here instead of using a JCE Mac.  The password and the
+ * salt are both the 40-byte input, so the HMAC key fits in a single block and the
+ * inner and outer pad states are computed once per nonce and then reused for the
+ * four key derivation blocks and the final block.  No objects are allocated while
+ * hashing.
+ *
+ * The second ROMix loop reads V at a data-dependent index on every iteration, which
+ * leaves the processor waiting on memory when just one nonce is hashed at a time.
+ * So we can hash 2 or 4 consecutive nonces (lanes) in lock-step, each with its own X
+ * and V.  The scratchpad reads for all of the lanes are issued together and the
+ * processor can overlap them with the Salsa20/8 rounds for the other lanes.
+ *
+ * Each lane normally keeps all 1024 V entries (128KB).  With a lookup gap of k, just
+ * every k-th entry is stored and a missing entry is recomputed from the stored entry
+ * before it when it is needed.  This trades extra Salsa20/8 work for a scratchpad that
+ * is k times smaller, which is faster when many workers would otherwise overflow the
+ * processor caches.
  */
 public class HashScrypt extends HashFunction {
 
-    /** Input data */
-    private final byte[] input = new byte[40];
+    /** SHA-256 round constants */
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    /** SHA-256 initial hash values */
+    private static final int[] IV = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    /** Input data as big-endian words (words 0 and 1 are the nonce) */
+    private final int[] P = new int[10];
+
+    /** Target as little-endian words */
+    private final int[] targetWords = new int[8];
+
+    /** Number of lanes */
+    private final int lanes;
+
+    /** HMAC inner pad state for each lane */
+    private final int[][] istate;
+
+    /** HMAC outer pad state for each lane */
+    private final int[][] ostate;
+
+    /** SHA-256 hash state */
+    private final int[] state = new int[8];
 
-    /** Target data */
-    private final byte[] target = new byte[32];
+    /** SHA-256 message schedule */
+    private final int[] W = new int[64];
 
-    /** Scrypt message digest */
-    private final Mac mac;
+    /** Lookup gap */
+    private final int gap;
 
-    private final byte[] H = new byte[32];
-    private final byte[] B = new byte[128 + 4];
-    private final int[] X = new int[32];
-    private final int[] V = new int[32 * 1024];
+    /** ROMix state for each lane */
+    private final int[][] X;
+    private final int[][] V;
+
+    /** Recomputed V entry for each lane */
+    private final int[][] T;
 
     /**
-     * Create a Scrypt hash function
+     * Create a single-lane Scrypt hash function
      */
     public HashScrypt() {
-        try {
-            mac = Mac.getInstance("HmacSHA256");
-        } catch (NoSuchAlgorithmException exc) {
-            throw new IllegalStateException("Unable to get HmacSHA256 message digest", exc);
+        this(1, 1);
+    }
+
+    /**
+     * Create a Scrypt hash function
+     *
+     * @param       lanes           Number of nonces to hash in lock-step (1, 2 or 4)
+     * @param       gap             Lookup gap (1, 2, 4, 8 or 16)
+     */
+    public HashScrypt(int lanes, int gap) {
+        if (lanes != 1 && lanes != 2 && lanes != 4)
+            throw new IllegalArgumentException("Scrypt lane count must be 1, 2 or 4");
+        if (gap < 1 || gap > 16 || (gap & (gap-1)) != 0)
+            throw new IllegalArgumentException("Scrypt lookup gap must be 1, 2, 4, 8 or 16");
+        this.lanes = lanes;
+        this.gap = gap;
+        istate = new int[lanes][8];
+        ostate = new int[lanes][8];
+        X = new int[lanes][32];
+        V = new int[lanes][32 * 1024 / gap];
+        T = new int[lanes][32];
+    }
+
+    /**
+     * Find the lookup gap that gives the best total hash rate when the
+     * specified number of CPU workers are hashing at the same time
+     *
+     * @param       threads         Number of CPU worker threads
+     * @param       lanes           Number of lanes for each worker
+     * @return                      Lookup gap
+     * @throws      InterruptedException    Calibration interrupted
+     */
+    public static int calibrateLookupGap(int threads, int lanes) throws InterruptedException {
+        int bestGap = 1;
+        double bestRate = 0;
+        log.info(String.format("Calibrating the Scrypt lookup gap for %d CPU threads", threads));
+        measureRate(threads, lanes, 1, 1000);
+        for (int gap=1; gap<=16; gap*=2) {
+            double rate = measureRate(threads, lanes, gap, 5000);
+            log.info(String.format("Scrypt lookup gap %d: %,.1f Hash/s", gap, rate));
+            if (rate > bestRate) {
+                bestRate = rate;
+                bestGap = gap;
+            }
         }
+        log.info(String.format("Using Scrypt lookup gap %d", bestGap));
+        return bestGap;
+    }
+
+    /**
+     * Measure the total hash rate for a lookup gap
+     *
+     * @param       threads         Number of threads
+     * @param       lanes           Number of lanes for each thread
+     * @param       gap             Lookup gap
+     * @param       millis          Measurement time in milliseconds
+     * @return                      Total hashes per second
+     * @throws      InterruptedException    Measurement interrupted
+     */
+    private static double measureRate(int threads, int lanes, int gap, long millis) throws InterruptedException {
+        HashFunction[] hashFunctions = new HashFunction[threads];
+        for (int i=0; i<threads; i++)
+            hashFunctions[i] = new HashScrypt(lanes, gap);
+        return measureRate(hashFunctions, millis);
     }
 
     /**
-     * Hash the input bytes
+     * Set the input data and the hash target
+     *
      * @param       inputBytes      Input (40 bytes)
      * @param       targetBytes     Target (32 bytes)
-     * @param       initialNonce    Initial nonce
+     */
+    @Override
+    public void setInput(byte[] inputBytes, byte[] targetBytes) {
+        for (int i=2; i<10; i++) {
+            P[i] = ((inputBytes[i*4] & 0xff) << 24) |
+                   ((inputBytes[i*4+1] & 0xff) << 16) |
+                   ((inputBytes[i*4+2] & 0xff) << 8) |
+                   (inputBytes[i*4+3] & 0xff);
+        }
+        for (int i=0; i<8; i++) {
+            targetWords[i] = (targetBytes[i*4] & 0xff) |
+                             ((targetBytes[i*4+1] & 0xff) << 8) |
+                             ((targetBytes[i*4+2] & 0xff) << 16) |
+                             ((targetBytes[i*4+3] & 0xff) << 24);
+        }
+    }
+
+    /**
+     * Hash a range of nonces
+     *
+     * @param       firstNonce      First nonce
+     * @param       count           Number of nonces
+     * @param       cancel          Cancel check (called before each group of lanes)
      * @return                      TRUE if the target was met
      */
     @Override
-    public boolean hash(byte[] inputBytes, byte[] targetBytes, long initialNonce) {
-        int count = 32*1024;
+    public boolean hash(long firstNonce, int count, BooleanSupplier cancel) {
         boolean meetsTarget = false;
-        System.arraycopy(inputBytes, 0, input, 0, 40);
-        System.arraycopy(targetBytes, 0, target, 0, 32);
-        nonce = initialNonce;
+        nonce = firstNonce - 1;
         hashCount = 0;
-        Thread thread = Thread.currentThread();
         //
-        // Keep hashing until we meet the target or the maximum loop count is reached
+        // Keep hashing until we meet the target, hash all of the nonces or are cancelled
         //
-        for (int i=0; i<count && !meetsTarget; i++) {
-            if (thread.isInterrupted())
+        while (hashCount < count && !meetsTarget) {
+            if (cancel.getAsBoolean())
                 break;
-            meetsTarget = doHash();
-            hashCount++;
+            int active = Math.min(count - hashCount, lanes);
+            meetsTarget = doHash(active);
+            hashCount += active;
         }
+        //
+        // Don't count the nonces following the solution
+        //
+        if (meetsTarget)
+            hashCount = (int)(nonce - firstNonce + 1);
         return meetsTarget;
     }
 
     /**
-     * Perform a single hash
+     * Hash the next nonce for each lane
      *
+     * All of the lanes are always hashed but only the first 'active' lanes are checked
+     * against the target.
+     *
+     * @param       active          Number of lanes to check
      * @return                      TRUE if the target is met
      */
-    private boolean doHash() {
-        int i, j, k;
+    private boolean doHash(int active) {
+        int i, j, k, l;
         //
         // Note that the nonce is stored in the first 8 bytes of the input data.  We will increment
-        // it each time through the hash loop.
+        // it for each lane each time through the hash loop.
         //
-        nonce++;
-        B[0] = (byte)nonce;
-        B[1] = (byte)(nonce>>8);
-        B[2] = (byte)(nonce>>16);
-        B[3] = (byte)(nonce>>24);
-        B[4] = (byte)(nonce>>32);
-        B[5] = (byte)(nonce>>40);
-        B[6] = (byte)(nonce>>48);
-        B[7] = (byte)(nonce>>56);
-        System.arraycopy(input, 8, B, 8, 32);
-        try {
-            mac.init(new SecretKeySpec(B, 0, 40, "HmacSHA256"));
-        } catch (InvalidKeyException e) {
-            throw new IllegalStateException(e);
-        }
-        B[40] = 0;
-        B[41] = 0;
-        B[42] = 0;
-        for (i=0; i<4; i++) {
-            B[43] = (byte) (i + 1);
-            mac.update(B, 0, 44);
-            try {
-                mac.doFinal(H, 0);
-            } catch (ShortBufferException e) {
-                throw new IllegalStateException(e);
-            }
-            for (j=0; j<8; j++) {
-                X[i*8+j] = (H[j*4] & 0xff)
-                        | (H[j*4+1] & 0xff) << 8
-                        | (H[j*4+2] & 0xff) << 16
-                        | (H[j*4+3] & 0xff) << 24;
+        for (l=0; l<lanes; l++) {
+            long laneNonce = nonce + l + 1;
+            P[0] = Integer.reverseBytes((int)laneNonce);
+            P[1] = Integer.reverseBytes((int)(laneNonce >>> 32));
+            //
+            // Compute the HMAC inner and outer pad states using the input data as the key
+            //
+            for (i=0; i<16; i++)
+                W[i] = (i < 10 ? P[i] : 0) ^ 0x36363636;
+            System.arraycopy(IV, 0, istate[l], 0, 8);
+            sha256(istate[l]);
+            for (i=0; i<16; i++)
+                W[i] = (i < 10 ? P[i] : 0) ^ 0x5c5c5c5c;
+            System.arraycopy(IV, 0, ostate[l], 0, 8);
+            sha256(ostate[l]);
+            //
+            // PBKDF2 with the input data as the salt: X = HMAC(input || INT(1)) || ... || HMAC(input || INT(4))
+            //
+            for (i=0; i<4; i++) {
+                System.arraycopy(P, 0, W, 0, 10);
+                W[10] = i + 1;
+                W[11] = 0x80000000;
+                W[12] = 0;
+                W[13] = 0;
+                W[14] = 0;
+                W[15] = (64 + 44) * 8;
+                System.arraycopy(istate[l], 0, state, 0, 8);
+                sha256(state);
+                hmacFinish(ostate[l]);
+                for (j=0; j<8; j++)
+                    X[l][i*8+j] = Integer.reverseBytes(state[j]);
             }
         }
+        //
+        // ROMix for all of the lanes in lock-step
+        //
         for (i=0; i<1024; i++) {
-            System.arraycopy(X, 0, V, i*32, 32);
-            xorSalsa8(0, 16);
-            xorSalsa8(16, 0);
+            for (l=0; l<lanes; l++) {
+                int[] x = X[l];
+                if (i%gap == 0)
+                    System.arraycopy(x, 0, V[l], (i/gap)*32, 32);
+                xorSalsa8(x, 0, 16);
+                xorSalsa8(x, 16, 0);
+            }
         }
         for (i=0; i<1024; i++) {
-            k = (X[16] & 1023) * 32;
-            for (j=0; j<32; j++)
-                X[j] ^= V[k+j];
-            xorSalsa8(0, 16);
-            xorSalsa8(16, 0);
-        }
-        for (i=0; i<32; i++) {
-            B[i*4] = (byte)(X[i]);
-            B[i*4+1] = (byte)(X[i] >> 8);
-            B[i*4+2] = (byte)(X[i] >> 16);
-            B[i*4+3] = (byte)(X[i] >> 24);
-        }
-        B[128+3] = 1;
-        mac.update(B, 0, 128 + 4);
-        try {
-            mac.doFinal(H, 0);
-        } catch (ShortBufferException e) {
-            throw new IllegalStateException(e);
+            if (gap == 1) {
+                for (l=0; l<lanes; l++) {
+                    int[] x = X[l];
+                    int[] v = V[l];
+                    k = (x[16] & 1023) * 32;
+                    for (j=0; j<32; j++)
+                        x[j] ^= v[k+j];
+                }
+            } else {
+                for (l=0; l<lanes; l++) {
+                    int[] x = X[l];
+                    int[] t = T[l];
+                    k = x[16] & 1023;
+                    System.arraycopy(V[l], (k/gap)*32, t, 0, 32);
+                    for (int m=k%gap; m>0; m--) {
+                        xorSalsa8(t, 0, 16);
+                        xorSalsa8(t, 16, 0);
+                    }
+                    for (j=0; j<32; j++)
+                        x[j] ^= t[j];
+                }
+            }
+            for (l=0; l<lanes; l++) {
+                int[] x = X[l];
+                xorSalsa8(x, 0, 16);
+                xorSalsa8(x, 16, 0);
+            }
         }
         //
-        // Check if we met the target
+        // PBKDF2 with X as the salt: HMAC(X || INT(1))
         //
-        boolean isSolved = true;
-        long check;
-        for (i=31; i>=0; i--) {
-            int b0 = (int)H[i]&0xff;
-            int b1 = (int)target[i]&0xff;
-            if (b0 < b1)
-                break;
-            if (b0 > b1) {
-                isSolved = false;
-                break;
+        boolean isSolved = false;
+        for (l=0; l<active && !isSolved; l++) {
+            int[] x = X[l];
+            System.arraycopy(istate[l], 0, state, 0, 8);
+            for (i=0; i<16; i++)
+                W[i] = Integer.reverseBytes(x[i]);
+            sha256(state);
+            for (i=0; i<16; i++)
+                W[i] = Integer.reverseBytes(x[i+16]);
+            sha256(state);
+            W[0] = 1;
+            W[1] = 0x80000000;
+            for (i=2; i<15; i++)
+                W[i] = 0;
+            W[15] = (64 + 128 + 4) * 8;
+            sha256(state);
+            hmacFinish(ostate[l]);
+            //
+            // Check if we met the target.  The digest bytes are the big-endian state words.
+            //
+            isSolved = meetsTarget(state, targetWords);
+            //
+            // Set the nonce and the digest if we have a match
+            //
+            if (isSolved) {
+                nonce += l;
+                for (i=0; i<8; i++) {
+                    digest[i*4] = (byte)(state[i] >>> 24);
+                    digest[i*4+1] = (byte)(state[i] >>> 16);
+                    digest[i*4+2] = (byte)(state[i] >>> 8);
+                    digest[i*4+3] = (byte)state[i];
+                }
             }
         }
-        //
-        // Set the digest if we have a match
-        //
-        if (isSolved)
-            System.arraycopy(H, 0, digest, 0, 32);
+        nonce += (isSolved ? 1 : active);
         return isSolved;
     }
 
+    /**
+     * Finish an HMAC by hashing the inner hash using the outer pad state.  The inner hash
+     * is in 'state' on entry and the HMAC is in 'state' on return.
+     *
+     * @param       opad        HMAC outer pad state
+     */
+    private void hmacFinish(int[] opad) {
+        System.arraycopy(state, 0, W, 0, 8);
+        W[8] = 0x80000000;
+        for (int i=9; i<15; i++)
+            W[i] = 0;
+        W[15] = (64 + 32) * 8;
+        System.arraycopy(opad, 0, state, 0, 8);
+        sha256(state);
+    }
+
+    /**
+     * Process a SHA-256 block.  The first 16 words of the message schedule contain the block.
+     *
+     * @param       H           Hash state (updated)
+     */
+    private void sha256(int[] H) {
+        int t;
+        for (t=16; t<64; t++) {
+            int s0 = Integer.rotateRight(W[t-15], 7) ^ Integer.rotateRight(W[t-15], 18) ^ (W[t-15] >>> 3);
+            int s1 = Integer.rotateRight(W[t-2], 17) ^ Integer.rotateRight(W[t-2], 19) ^ (W[t-2] >>> 10);
+            W[t] = s1 + W[t-7] + s0 + W[t-16];
+        }
+        int a = H[0], b = H[1], c = H[2], d = H[3], e = H[4], f = H[5], g = H[6], h = H[7];
+        for (t=0; t<64; t++) {
+            int t1 = h + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25)) +
+                        (g ^ (e & (f ^ g))) + K[t] + W[t];
+            int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22)) +
+                        ((a & b) | (c & (a | b)));
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        H[0] += a;
+        H[1] += b;
+        H[2] += c;
+        H[3] += d;
+        H[4] += e;
+        H[5] += f;
+        H[6] += g;
+        H[7] += h;
+    }
+
     /**
      * Block mix
      *
+     * @param       X           ROMix state
      * @param       di          First block start index
      * @param       xi          Second block start index
      */
-    private void xorSalsa8(int di, int xi) {
+    private static void xorSalsa8(int[] X, int di, int xi) {
         int x00 = (X[di + 0] ^= X[xi + 0]);
         int x01 = (X[di + 1] ^= X[xi + 1]);
         int x02 = (X[di + 2] ^= X[xi + 2]);
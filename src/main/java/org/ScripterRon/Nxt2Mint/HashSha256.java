@@ -15,83 +15,305 @@
  */
 package org.ScripterRon.Nxt2Mint;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.function.BooleanSupplier;
 
 /**
  * SHA-256 hash function
+ *
+ * The 40-byte input always fits in a single 64-byte SHA-256 block and only the
+ * nonce (bytes 0-7) changes from one hash to the next.  So we compress the block
+ * directly instead of using MessageDigest.  Message schedule words W2-W15 and the
+ * nonce-independent parts of W16-W31 are computed once by setInput()
+ * and no objects are allocated while hashing.
  */
 public class HashSha256 extends HashFunction {
 
-    /** SHA-256 message digest */
-    private final MessageDigest md;
+    /** SHA-256 round constants */
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    /** SHA-256 initial hash values */
+    private static final int H0 = 0x6a09e667;
+    private static final int H1 = 0xbb67ae85;
+    private static final int H2 = 0x3c6ef372;
+    private static final int H3 = 0xa54ff53a;
+    private static final int H4 = 0x510e527f;
+    private static final int H5 = 0x9b05688c;
+    private static final int H6 = 0x1f83d9ab;
+    private static final int H7 = 0x5be0cd19;
+
+    /** Number of hashes between cancel checks (must be a power of 2) */
+    private static final int CANCEL_INTERVAL = 1024;
+
+    /** Message schedule */
+    private final int[] W = new int[64];
+
+    /** Nonce-independent parts of message schedule words 16-31 */
+    private final int[] C = new int[32];
+
+    /** Target as little-endian words */
+    private final int[] targetWords = new int[8];
+
+    /** First round values that do not depend on the nonce */
+    private int round0T1;
+    private int round0T2;
 
     /**
      * Create a SHA-256 hash function
      */
     public HashSha256() {
-        try {
-            md = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException exc) {
-            throw new IllegalStateException("Unable to get SHA-256 digest", exc);
-        }
+        super();
     }
 
     /**
-     * Hash the input bytes
+     * Set the input data and the hash target
      *
      * @param       input           Input bytes (40 bytes)
      * @param       target          Target (32 bytes)
-     * @param       initialNonce    Initial nonce
-     * @return                      Hash digest (32 bytes)
      */
     @Override
-    public boolean hash(byte[] input, byte[] target, long initialNonce) {
-        nonce = initialNonce;
+    public void setInput(byte[] input, byte[] target) {
+        //
+        // SHA-256 is big-endian.  Bytes 8-39 of the input data are W2-W9.  The pad byte (0x80)
+        // is in W10 and the data bit count (320) is in W15.
+        //
+        for (int i=2; i<10; i++) {
+            W[i] = ((input[i*4] & 0xff) << 24) |
+                   ((input[i*4+1] & 0xff) << 16) |
+                   ((input[i*4+2] & 0xff) << 8) |
+                   (input[i*4+3] & 0xff);
+        }
+        W[10] = 0x80000000;
+        W[11] = 0;
+        W[12] = 0;
+        W[13] = 0;
+        W[14] = 0;
+        W[15] = 320;
+        //
+        // W[t] = s1(W[t-2]) + W[t-7] + s0(W[t-15]) + W[t-16].  Save the sum of the terms
+        // that use W2-W15 for each of W16-W31.
+        //
+        for (int t=16; t<32; t++) {
+            int c = 0;
+            if (t-2 < 16)
+                c += s1(W[t-2]);
+            if (t-7 < 16)
+                c += W[t-7];
+            if (t-15 >= 2 && t-15 < 16)
+                c += s0(W[t-15]);
+            if (t-16 >= 2)
+                c += W[t-16];
+            C[t] = c;
+        }
+        //
+        // The first round uses W0 just once, so everything else is a constant
+        //
+        round0T1 = H7 + S1(H4) + ((H4 & H5) ^ (~H4 & H6)) + K[0];
+        round0T2 = S0(H0) + ((H0 & H1) ^ (H0 & H2) ^ (H1 & H2));
+        //
+        // The target and the digest are treated as unsigned 32-byte little-endian numbers
+        //
+        for (int i=0; i<8; i++) {
+            targetWords[i] = (target[i*4] & 0xff) |
+                             ((target[i*4+1] & 0xff) << 8) |
+                             ((target[i*4+2] & 0xff) << 16) |
+                             ((target[i*4+3] & 0xff) << 24);
+        }
+    }
+
+    /**
+     * Hash a range of nonces
+     *
+     * @param       firstNonce      First nonce
+     * @param       count           Number of nonces
+     * @param       cancel          Cancel check (called every 1024 hashes)
+     * @return                      TRUE if the target was met
+     */
+    @Override
+    public boolean hash(long firstNonce, int count, BooleanSupplier cancel) {
+        nonce = firstNonce - 1;
         hashCount = 0;
         boolean meetsTarget = false;
-        Thread thread = Thread.currentThread();
         //
-        // Keep hashing until we meet the target or the maximum loop count is reached
+        // Keep hashing until we meet the target, hash all of the nonces or are cancelled
         //
-        for (int i=0; i<512*1024 && !meetsTarget; i++) {
-            if (thread.isInterrupted())
+        for (int i=0; i<count && !meetsTarget; i++) {
+            if ((i & (CANCEL_INTERVAL-1)) == 0 && cancel.getAsBoolean())
                 break;
-            //
-            // Note that the nonce is stored in the first 8 bytes of the input data.  We will increment
-            // it each time through the hash loop.
-            //
             nonce++;
-            input[0] = (byte)nonce;
-            input[1] = (byte)(nonce>>8);
-            input[2] = (byte)(nonce>>16);
-            input[3] = (byte)(nonce>>24);
-            input[4] = (byte)(nonce>>32);
-            input[5] = (byte)(nonce>>40);
-            input[6] = (byte)(nonce>>48);
-            input[7] = (byte)(nonce>>56);
-            //
-            // Do the hash
-            //
-            byte[] output = md.digest(input);
+            meetsTarget = doHash();
             hashCount++;
-            //
-            // Check if we have met the target
-            //
-            meetsTarget = true;
-            for (int j=31; j>=0; j--) {
-                int b0 = (int)output[j]&0xff;
-                int b1 = (int)target[j]&0xff;
-                if (b0 < b1)
-                    break;
-                if (b0 > b1) {
-                    meetsTarget = false;
-                    break;
-                }
-            }
-            if (meetsTarget)
-                System.arraycopy(output, 0, digest, 0, 32);
         }
         return meetsTarget;
     }
+
+    /**
+     * Perform a single hash
+     *
+     * @return                      TRUE if the target is met
+     */
+    private boolean doHash() {
+        final int[] w = W;
+        //
+        // Finish the message schedule.  The nonce is in W0 and W1.
+        //
+        int w0 = Integer.reverseBytes((int)nonce);
+        int w1 = Integer.reverseBytes((int)(nonce >>> 32));
+        w[0] = w0;
+        w[1] = w1;
+        w[16] = C[16] + s0(w1) + w0;
+        w[17] = C[17] + w1;
+        for (int t=18; t<23; t++)
+            w[t] = C[t] + s1(w[t-2]);
+        for (int t=23; t<31; t++)
+            w[t] = C[t] + s1(w[t-2]) + w[t-7];
+        w[31] = C[31] + s1(w[29]) + w[24] + s0(w[16]);
+        for (int t=32; t<64; t++)
+            w[t] = s1(w[t-2]) + w[t-7] + s0(w[t-15]) + w[t-16];
+        //
+        // Compress the block.  The rounds are unrolled eight at a time so the working
+        // variables don't have to be shuffled after each round.  The first round uses
+        // the nonce just once, so most of it has already been computed.
+        //
+        int a = H0;
+        int b = H1;
+        int c = H2;
+        int d = H3 + round0T1 + w0;
+        int e = H4;
+        int f = H5;
+        int g = H6;
+        int h = round0T1 + round0T2 + w0;
+        g += S1(d) + (f ^ (d & (e ^ f))) + K[1] + w[1];
+        c += g;
+        g += S0(h) + ((h & a) | (b & (h | a)));
+        f += S1(c) + (e ^ (c & (d ^ e))) + K[2] + w[2];
+        b += f;
+        f += S0(g) + ((g & h) | (a & (g | h)));
+        e += S1(b) + (d ^ (b & (c ^ d))) + K[3] + w[3];
+        a += e;
+        e += S0(f) + ((f & g) | (h & (f | g)));
+        d += S1(a) + (c ^ (a & (b ^ c))) + K[4] + w[4];
+        h += d;
+        d += S0(e) + ((e & f) | (g & (e | f)));
+        c += S1(h) + (b ^ (h & (a ^ b))) + K[5] + w[5];
+        g += c;
+        c += S0(d) + ((d & e) | (f & (d | e)));
+        b += S1(g) + (a ^ (g & (h ^ a))) + K[6] + w[6];
+        f += b;
+        b += S0(c) + ((c & d) | (e & (c | d)));
+        a += S1(f) + (h ^ (f & (g ^ h))) + K[7] + w[7];
+        e += a;
+        a += S0(b) + ((b & c) | (d & (b | c)));
+        for (int t=8; t<64; t+=8) {
+            h += S1(e) + (g ^ (e & (f ^ g))) + K[t] + w[t];
+            d += h;
+            h += S0(a) + ((a & b) | (c & (a | b)));
+            g += S1(d) + (f ^ (d & (e ^ f))) + K[t+1] + w[t+1];
+            c += g;
+            g += S0(h) + ((h & a) | (b & (h | a)));
+            f += S1(c) + (e ^ (c & (d ^ e))) + K[t+2] + w[t+2];
+            b += f;
+            f += S0(g) + ((g & h) | (a & (g | h)));
+            e += S1(b) + (d ^ (b & (c ^ d))) + K[t+3] + w[t+3];
+            a += e;
+            e += S0(f) + ((f & g) | (h & (f | g)));
+            d += S1(a) + (c ^ (a & (b ^ c))) + K[t+4] + w[t+4];
+            h += d;
+            d += S0(e) + ((e & f) | (g & (e | f)));
+            c += S1(h) + (b ^ (h & (a ^ b))) + K[t+5] + w[t+5];
+            g += c;
+            c += S0(d) + ((d & e) | (f & (d | e)));
+            b += S1(g) + (a ^ (g & (h ^ a))) + K[t+6] + w[t+6];
+            f += b;
+            b += S0(c) + ((c & d) | (e & (c | d)));
+            a += S1(f) + (h ^ (f & (g ^ h))) + K[t+7] + w[t+7];
+            e += a;
+            a += S0(b) + ((b & c) | (d & (b | c)));
+        }
+        a += H0;
+        b += H1;
+        c += H2;
+        d += H3;
+        e += H4;
+        f += H5;
+        g += H6;
+        h += H7;
+        //
+        // Check if we met the target.  The digest bytes are the big-endian state words,
+        // so the most significant word of the little-endian digest is the byte-reversed H7.
+        //
+        int cmp = Integer.compareUnsigned(Integer.reverseBytes(h), targetWords[7]);
+        if (cmp == 0)
+            cmp = Integer.compareUnsigned(Integer.reverseBytes(g), targetWords[6]);
+        if (cmp == 0)
+            cmp = Integer.compareUnsigned(Integer.reverseBytes(f), targetWords[5]);
+        if (cmp == 0)
+            cmp = Integer.compareUnsigned(Integer.reverseBytes(e), targetWords[4]);
+        if (cmp == 0)
+            cmp = Integer.compareUnsigned(Integer.reverseBytes(d), targetWords[3]);
+        if (cmp == 0)
+            cmp = Integer.compareUnsigned(Integer.reverseBytes(c), targetWords[2]);
+        if (cmp == 0)
+            cmp = Integer.compareUnsigned(Integer.reverseBytes(b), targetWords[1]);
+        if (cmp == 0)
+            cmp = Integer.compareUnsigned(Integer.reverseBytes(a), targetWords[0]);
+        boolean isSolved = (cmp <= 0);
+        //
+        // Set the digest if we have a match
+        //
+        if (isSolved) {
+            putWord(a, 0);
+            putWord(b, 4);
+            putWord(c, 8);
+            putWord(d, 12);
+            putWord(e, 16);
+            putWord(f, 20);
+            putWord(g, 24);
+            putWord(h, 28);
+        }
+        return isSolved;
+    }
+
+    /**
+     * Store a big-endian word in the digest
+     *
+     * @param       word            Word
+     * @param       offset          Digest offset
+     */
+    private void putWord(int word, int offset) {
+        digest[offset] = (byte)(word >>> 24);
+        digest[offset+1] = (byte)(word >>> 16);
+        digest[offset+2] = (byte)(word >>> 8);
+        digest[offset+3] = (byte)word;
+    }
+
+    /**
+     * SHA-256 message schedule functions
+     */
+    private static int s0(int x) {
+        return Integer.rotateRight(x, 7) ^ Integer.rotateRight(x, 18) ^ (x >>> 3);
+    }
+
+    private static int s1(int x) {
+        return Integer.rotateRight(x, 17) ^ Integer.rotateRight(x, 19) ^ (x >>> 10);
+    }
+
+    /**
+     * SHA-256 compression functions
+     */
+    private static int S0(int x) {
+        return Integer.rotateRight(x, 2) ^ Integer.rotateRight(x, 13) ^ Integer.rotateRight(x, 22);
+    }
+
+    private static int S1(int x) {
+        return Integer.rotateRight(x, 6) ^ Integer.rotateRight(x, 11) ^ Integer.rotateRight(x, 25);
+    }
 }
@@ -14,90 +14,390 @@
  * limitations under the License.
  */
 package org.ScripterRon.Nxt2Mint;
-import static org.ScripterRon.Nxt2Mint.Main.log;
 
-import org.bouncycastle.jcajce.provider.digest.SHA3;
-import java.security.MessageDigest;
+import java.util.function.BooleanSupplier;
 
 /**
  * SHA-3 hash function
+ *
+ * The 40-byte input always fits in a single 136-byte SHA3-256 block, so we run one
+ * Keccak-f[1600] permutation with the SHA-3 padding already in place instead of
+ * using a message digest.
  */
 public class HashSha3 extends HashFunction {
 
-    /** SHA-3 message digest */
-    private final MessageDigest md;
+    /** Round constants */
+    private static final long[] constants = {
+        1L, 32898L, -9223372036854742902L, -9223372034707259392L, 32907L,
+        2147483649L, -9223372034707259263L, -9223372036854743031L, 138L, 136L,
+        2147516425L, 2147483658L, 2147516555L, -9223372036854775669L, -9223372036854742903L,
+        -9223372036854743037L, -9223372036854743038L, -9223372036854775680L, 32778L, -9223372034707292150L,
+        -9223372034707259263L, -9223372036854742912L, 2147483649L, -9223372034707259384L
+    };
+
+    /** SHA-3 padding following the data (stored in lane 5) */
+    private static final long PADDING = 6L;
+
+    /** Number of hashes between cancel checks (must be a power of 2) */
+    private static final int CANCEL_INTERVAL = 1024;
+
+    /** Input data words 1-4 (word 0 is the nonce) */
+    private long input1, input2, input3, input4;
 
-    /** Input data */
-    private final byte[] input = new byte[40];
+    /** Target words */
+    private long target0, target1, target2, target3;
 
-    /** Target data */
-    private final byte[] target = new byte[32];
+    /** First round theta adjustments for the nonce lanes */
+    private long theta0, theta1, theta4;
+
+    /** First round lanes that do not depend on the nonce (after theta, rho and pi) */
+    private long b2, b3, b5, b7, b9, b11, b12, b14, b16, b18, b19, b20, b21, b23;
+
+    /** First round chi terms that do not depend on the nonce */
+    private long chi1, chi8, chi10, chi17, chi24;
 
     /**
      * Create a SHA-3 hash function
      */
     public HashSha3() {
-        md = new SHA3.DigestSHA3(256);
+        super();
     }
 
     /**
-     * Hash the input bytes
+     * Set the input data and the hash target
+     *
+     * SHA-3 pads the message with 0x06 following the data and sets the high-order bit
+     * of the last byte in the 136-byte block (lane 16).
+     *
+     * Only lane 0 of the initial state contains the nonce.  The theta step spreads it
+     * to columns 1 and 4, so the first round lanes coming from columns 0, 2 and 3 (other
+     * than lane 0 itself) are the same for every nonce.
      *
      * @param       inputBytes      Input bytes (40 bytes)
      * @param       targetBytes     Target (32 bytes)
-     * @param       initialNonce    Initial nonce
-     * @return                      Hash digest (32 bytes)
      */
     @Override
-    public boolean hash(byte[] inputBytes, byte[] targetBytes, long initialNonce) {
-        int count = 1024*1024;
+    public void setInput(byte[] inputBytes, byte[] targetBytes) {
+        input1 = getLong(inputBytes, 8);
+        input2 = getLong(inputBytes, 16);
+        input3 = getLong(inputBytes, 24);
+        input4 = getLong(inputBytes, 32);
+        target0 = getLong(targetBytes, 0);
+        target1 = getLong(targetBytes, 8);
+        target2 = getLong(targetBytes, 16);
+        target3 = getLong(targetBytes, 24);
+        //
+        // Theta adjustments for columns 0, 2 and 3 and the constant parts of the
+        // adjustments for columns 1 and 4
+        //
+        long c1 = input1 ^ -9223372036854775808L;
+        long d0 = input4 ^ ((c1 << 1) | (c1 >>> (64-1)));
+        long d2 = c1 ^ ((input3 << 1) | (input3 >>> (64-1)));
+        long d3 = input2 ^ ((input4 << 1) | (input4 >>> (64-1)));
+        theta0 = d0;
+        theta1 = PADDING ^ ((input2 << 1) | (input2 >>> (64-1)));
+        theta4 = input3 ^ (PADDING << 1);
+        //
+        // Rho and pi for the lanes that do not depend on the nonce
+        //
+        long t;
+        b2 = (d2 << 43) | (d2 >>> (64-43));
+        b3 = (d3 << 21) | (d3 >>> (64-21));
+        t = input3 ^ d3;
+        b5 = (t << 28) | (t >>> (64-28));
+        b7 = (d0 << 3) | (d0 >>> (64-3));
+        b9 = (d2 << 61) | (d2 >>> (64-61));
+        b11 = (d2 << 6) | (d2 >>> (64-6));
+        b12 = (d3 << 25) | (d3 >>> (64-25));
+        b14 = (d0 << 18) | (d0 >>> (64-18));
+        t = PADDING ^ d0;
+        b16 = (t << 36) | (t >>> (64-36));
+        b18 = (d2 << 15) | (d2 >>> (64-15));
+        b19 = (d3 << 56) | (d3 >>> (64-56));
+        t = input2 ^ d2;
+        b20 = (t << 62) | (t >>> (64-62));
+        b21 = (d3 << 55) | (d3 >>> (64-55));
+        b23 = (d0 << 41) | (d0 >>> (64-41));
+        //
+        // Chi terms where both lanes do not depend on the nonce
+        //
+        chi1 = ~b2 & b3;
+        chi8 = ~b9 & b5;
+        chi10 = ~b11 & b12;
+        chi17 = ~b18 & b19;
+        chi24 = ~b20 & b21;
+    }
+
+    /**
+     * Hash a range of nonces
+     *
+     * @param       firstNonce      First nonce
+     * @param       count           Number of nonces
+     * @param       cancel          Cancel check (called every 1024 hashes)
+     * @return                      TRUE if the target was met
+     */
+    @Override
+    public boolean hash(long firstNonce, int count, BooleanSupplier cancel) {
         boolean meetsTarget = false;
-        System.arraycopy(inputBytes, 0, input, 0, 40);
-        System.arraycopy(targetBytes, 0, target, 0, 32);
-        nonce = initialNonce;
+        nonce = firstNonce - 1;
         hashCount = 0;
-        Thread thread = Thread.currentThread();
         //
-        // Keep hashing until we meet the target or the maximum loop count is reached
+        // Keep hashing until we meet the target, hash all of the nonces or are cancelled
         //
         for (int i=0; i<count && !meetsTarget; i++) {
-            if (thread.isInterrupted())
+            if ((i & (CANCEL_INTERVAL-1)) == 0 && cancel.getAsBoolean())
                 break;
-            //
-            // Note that the nonce is stored in the first 8 bytes of the input data.  We will increment
-            // it each time through the hash loop.
-            //
-            nonce++;
-            input[0] = (byte)nonce;
-            input[1] = (byte)(nonce>>8);
-            input[2] = (byte)(nonce>>16);
-            input[3] = (byte)(nonce>>24);
-            input[4] = (byte)(nonce>>32);
-            input[5] = (byte)(nonce>>40);
-            input[6] = (byte)(nonce>>48);
-            input[7] = (byte)(nonce>>56);
-            //
-            // Do the hash
-            //
-            byte[] output = md.digest(input);
+            meetsTarget = doHash();
             hashCount++;
-            //
-            // Check if we have met the target
-            //
-            meetsTarget = true;
-            for (int j=31; j>=0; j--) {
-                int b0 = (int)output[j]&0xff;
-                int b1 = (int)target[j]&0xff;
-                if (b0 < b1)
-                    break;
-                if (b0 > b1) {
-                    meetsTarget = false;
-                    break;
-                }
-            }
-            if (meetsTarget)
-                System.arraycopy(output, 0, digest, 0, 32);
         }
         return meetsTarget;
     }
+
+    /**
+     * Perform a single hash
+     *
+     * @return                      TRUE if the target is met
+     */
+    private boolean doHash() {
+        //
+        // Note that the nonce is stored in the first 8 bytes of the input data.  We will increment
+        // it each time through the hash loop.
+        //
+        // First round: the nonce-independent lanes and chi terms were computed by setInput()
+        //
+        nonce++;
+        long t;
+        long u = nonce ^ theta1;
+        long v = ((nonce << 1) | (nonce >>> (64-1))) ^ theta4;
+        long b0 = nonce ^ theta0;
+        long b1 = (u << 44) | (u >>> (64-44));
+        long b4 = (v << 14) | (v >>> (64-14));
+        long b6 = (v << 20) | (v >>> (64-20));
+        t = u ^ -9223372036854775808L;
+        long b8 = (t << 45) | (t >>> (64-45));
+        t = u ^ input1;
+        long b10 = (t << 1) | (t >>> (64-1));
+        long b13 = (v << 8) | (v >>> (64-8));
+        t = v ^ input4;
+        long b15 = (t << 27) | (t >>> (64-27));
+        long b17 = (u << 10) | (u >>> (64-10));
+        long b22 = (v << 39) | (v >>> (64-39));
+        long b24 = (u << 2) | (u >>> (64-2));
+        long state0 = b0 ^ (~b1 & b2) ^ constants[0];
+        long state1 = b1 ^ chi1;
+        long state2 = b2 ^ (~b3 & b4);
+        long state3 = b3 ^ (~b4 & b0);
+        long state4 = b4 ^ (~b0 & b1);
+        long state5 = b5 ^ (~b6 & b7);
+        long state6 = b6 ^ (~b7 & b8);
+        long state7 = b7 ^ (~b8 & b9);
+        long state8 = b8 ^ chi8;
+        long state9 = b9 ^ (~b5 & b6);
+        long state10 = b10 ^ chi10;
+        long state11 = b11 ^ (~b12 & b13);
+        long state12 = b12 ^ (~b13 & b14);
+        long state13 = b13 ^ (~b14 & b10);
+        long state14 = b14 ^ (~b10 & b11);
+        long state15 = b15 ^ (~b16 & b17);
+        long state16 = b16 ^ (~b17 & b18);
+        long state17 = b17 ^ chi17;
+        long state18 = b18 ^ (~b19 & b15);
+        long state19 = b19 ^ (~b15 & b16);
+        long state20 = b20 ^ (~b21 & b22);
+        long state21 = b21 ^ (~b22 & b23);
+        long state22 = b22 ^ (~b23 & b24);
+        long state23 = b23 ^ (~b24 & b20);
+        long state24 = b24 ^ chi24;
+        //
+        // Middle rounds
+        //
+        int i;
+        for (i=1; i<23;) {
+            long t1, t2, t3, t4, t5, t6, t7, t8, t9, t10, t11, t12, t13, t14, t15, t16, t17, t18, t19;
+            t1 = state0 ^ state5 ^ state10 ^ state15 ^ state20;
+            t2 = state2 ^ state7 ^ state12 ^ state17 ^ state22;
+            t3 = t1 ^ ((t2 << 1) | (t2 >>> (64-1)));
+            t12 = state1 ^ t3;
+
+            t4 = state1 ^ state6 ^ state11 ^ state16 ^ state21;
+            t5 = state3 ^ state8 ^ state13 ^ state18 ^ state23;
+            t6 = t4 ^ ((t5 << 1) | (t5 >>> (64-1)));
+            t13 = state2 ^ t6;
+
+            t7 = state4 ^ state9 ^ state14 ^ state19 ^ state24;
+            t8 = ((t4 << 1) | (t4 >>> (64-1))) ^ t7;
+            t16 = state6 ^ t3;
+            t16 = ((t16 << 44) | (t16 >>> (64-44)));
+            state2 = state12 ^ t6;
+            state2 = (state2 << 43) | (state2 >>> (64-43));
+            t9 = state0 ^ t8;
+            state0 = t9 ^ (~t16 & state2) ^ constants[i++];
+
+            t10 = ((t7 << 1) | (t7 >>> (64-1))) ^ t2;
+            t14 = state3 ^ t10;
+            state3 = state18 ^ t10;
+            state3 = (state3 << 21) | (state3 >>> (64-21));
+            state1 = t16 ^ (~state2 & state3);
+
+            t11 = ((t1 << 1) | (t1 >>> (64-1))) ^ t5;
+            t15 = state4 ^ t11;
+            state4 = state24 ^ t11;
+            state4 = (state4 << 14) | (state4 >>> (64-14));
+            state2 ^= (~state3) & state4;
+
+            state3 ^= (~state4) & t9;
+            state4 ^= (~t9) & t16;
+            t16 = state5 ^ t8;
+            t17 = state7 ^ t6;
+            t19 = state9 ^ t11;
+            t19 = (t19 << 20) | (t19 >>> (64-20));
+            t14 = (t14 << 28) | (t14 >>> (64-28));
+            state7 = state10 ^ t8;
+            state7 = (state7 << 3) | (state7 >>> (64-3));
+            state5 = t14 ^ (~t19 & state7);
+
+            t18 = state8 ^ t10;
+            state8 = state16 ^ t3;
+            state8 = (state8 << 45) | (state8 >>> (64-45));
+            state6 = t19 ^ (~state7 & state8);
+
+            state9 = state22 ^ t6;
+            state9 = (state9 << 61) | (state9 >>> (64-61));
+            state7 ^= (~state8) & state9;
+
+            state8 ^= ~state9 & t14;
+            state9 ^= ~t14 & t19;
+            t19 = state11 ^ t3;
+
+            t12 = (t12 << 1) | (t12 >>> (64-1));
+            t17 = (t17 << 6) | (t17 >>> (64-6));
+            state12 = state13 ^ t10;
+            state12 = (state12 << 25) | (state12 >>> (64-25));
+            state10 = t12 ^ (~t17 & state12);
+
+            state13 = state19 ^ t11;
+            state13 = (state13 << 8) | (state13 >>> (64-8));
+            state11 = t17 ^ (~state12 & state13);
+
+            t14 = state14 ^ t11;
+            state14 = state20 ^ t8;
+            state14 = (state14 << 18) | (state14 >>> (64-18));
+            state12 ^= ~state13 & state14;
+
+            state13 ^= ~state14 & t12;
+            state14 ^= ~t12 & t17;
+            t12 = state15 ^ t8;
+            t17 = state17 ^ t6;
+
+            t16 = (t16 << 36) | (t16 >>> (64-36));
+            t15 = (t15 << 27) | (t15 >>> (64-27));
+            state17 = (t19 << 10) | (t19 >>> (64-10));
+            state15 = t15 ^ (~t16 & state17);
+
+            state18 = (t17 << 15) | (t17 >>> (64-15));
+            state16 = t16 ^ (~state17 & state18);
+
+            state19 = state23 ^ t10;
+            state19 = (state19 << 56) | (state19 >>> (64-56));
+            state17 ^= ~state18 & state19;
+
+            state18 ^= (~state19) & t15;
+            state19 ^= (~t15) & t16;
+            t19 = state21 ^ t3;
+
+            t13 = (t13 << 62) | (t13 >>> (64-62));
+            t18 = (t18 << 55) | (t18 >>> (64-55));
+            state22 = (t14 << 39) | (t14 >>> (64-39));
+            state20 = t13 ^ (~t18 & state22);
+
+            state23 = (t12 << 41) | (t12 >>> (64-41));
+            state21 = t18 ^ (~state22 & state23);
+
+            state24 = (t19 << 2) | (t19 >>> (64-2));
+            state22 ^= ~state23 & state24;
+            state23 ^= ~state24 & t13;
+            state24 ^= ~t13 & t18;
+        }
+        //
+        // Final round: only state0-state3 are needed for the digest
+        //
+        long c0 = state0 ^ state5 ^ state10 ^ state15 ^ state20;
+        long c1 = state1 ^ state6 ^ state11 ^ state16 ^ state21;
+        long c2 = state2 ^ state7 ^ state12 ^ state17 ^ state22;
+        long c3 = state3 ^ state8 ^ state13 ^ state18 ^ state23;
+        long c4 = state4 ^ state9 ^ state14 ^ state19 ^ state24;
+        long f0 = state0 ^ c4 ^ ((c1 << 1) | (c1 >>> (64-1)));
+        t = state6 ^ c0 ^ ((c2 << 1) | (c2 >>> (64-1)));
+        long f1 = (t << 44) | (t >>> (64-44));
+        t = state12 ^ c1 ^ ((c3 << 1) | (c3 >>> (64-1)));
+        long f2 = (t << 43) | (t >>> (64-43));
+        t = state18 ^ c2 ^ ((c4 << 1) | (c4 >>> (64-1)));
+        long f3 = (t << 21) | (t >>> (64-21));
+        t = state24 ^ c3 ^ ((c0 << 1) | (c0 >>> (64-1)));
+        long f4 = (t << 14) | (t >>> (64-14));
+        state0 = f0 ^ (~f1 & f2) ^ constants[23];
+        state1 = f1 ^ (~f2 & f3);
+        state2 = f2 ^ (~f3 & f4);
+        state3 = f3 ^ (~f4 & f0);
+        //
+        // Check if we met the target
+        //
+        boolean isSolved = meetsTarget(state0, state1, state2, state3, target0, target1, target2, target3);
+        //
+        // Set the digest if we have a match
+        //
+        if (isSolved) {
+            digest[0] = (byte)(state0);
+            digest[1] = (byte)(state0 >> 8);
+            digest[2] = (byte)(state0 >> 16);
+            digest[3] = (byte)(state0 >> 24);
+            digest[4] = (byte)(state0 >> 32);
+            digest[5] = (byte)(state0 >> 40);
+            digest[6] = (byte)(state0 >> 48);
+            digest[7] = (byte)(state0 >> 56);
+            digest[8] = (byte)(state1);
+            digest[9] = (byte)(state1 >> 8);
+            digest[10] = (byte)(state1 >> 16);
+            digest[11] = (byte)(state1 >> 24);
+            digest[12] = (byte)(state1 >> 32);
+            digest[13] = (byte)(state1 >> 40);
+            digest[14] = (byte)(state1 >> 48);
+            digest[15] = (byte)(state1 >> 56);
+            digest[16] = (byte)(state2);
+            digest[17] = (byte)(state2 >> 8);
+            digest[18] = (byte)(state2 >> 16);
+            digest[19] = (byte)(state2 >> 24);
+            digest[20] = (byte)(state2 >> 32);
+            digest[21] = (byte)(state2 >> 40);
+            digest[22] = (byte)(state2 >> 48);
+            digest[23] = (byte)(state2 >> 56);
+            digest[24] = (byte)(state3);
+            digest[25] = (byte)(state3 >> 8);
+            digest[26] = (byte)(state3 >> 16);
+            digest[27] = (byte)(state3 >> 24);
+            digest[28] = (byte)(state3 >> 32);
+            digest[29] = (byte)(state3 >> 40);
+            digest[30] = (byte)(state3 >> 48);
+            digest[31] = (byte)(state3 >> 56);
+        }
+        return isSolved;
+    }
+
+    /**
+     * Get a little-endian long value
+     *
+     * @param       bytes           Byte array
+     * @param       offset          Starting offset
+     * @return                      Long value
+     */
+    private static long getLong(byte[] bytes, int offset) {
+        return ((long)bytes[offset] & 0xFF) |
+                (((long)bytes[offset+1] & 0xFF) << 8) |
+                (((long)bytes[offset+2] & 0xFF) << 16) |
+                (((long)bytes[offset+3] & 0xFF) << 24) |
+                (((long)bytes[offset+4] & 0xFF) << 32) |
+                (((long)bytes[offset+5] & 0xFF) << 40) |
+                (((long)bytes[offset+6] & 0xFF) << 48) |
+                (((long)bytes[offset+7] & 0xFF) << 56);
+    }
 }
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+import static org.ScripterRon.Nxt2Mint.Main.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Load governor for co-tenant mode
+ *
+ * The governor lets the CPU workers share a system with other applications.  Once a
+ * second it reads the Linux pressure stall information in /proc/pressure/cpu and
+ * /proc/pressure/memory, the processor idle time in /proc/stat and the load in
+ * /proc/loadavg.  The stall time for the last interval is computed from the 'total'
+ * counters, so the governor reacts to a change in the foreground load within a second
+ * instead of waiting for the 10-second pressure average to rise.  CPU workers are paused,
+ * starting with the most recently started worker, while the CPU or memory pressure is
+ * above the configured limit, and are resumed one at a time while the pressure is low
+ * and a processor is idle.  When pressure stall information is not available, the
+ * workers are paused when the runnable tasks exceed the number of processors.
+ *
+ * A paused worker stops at the end of its current batch.  The unhashed part of the batch
+ * is returned to the nonce allocator, so no nonce-range progress is lost.
+ */
+public class LoadGovernor {
+
+    /** Load check interval (milliseconds) */
+    private static final long CHECK_INTERVAL = 1000;
+
+    /** Status message interval (milliseconds) */
+    private static final long STATUS_INTERVAL = 60000;
+
+    /** Time after a worker is paused before a worker is resumed (milliseconds) */
+    private static final long HOLD_TIME = 3000;
+
+    /** Idle processor capacity needed to resume a worker */
+    private static final double IDLE_THRESHOLD = 0.75;
+
+    /** CPU pressure file */
+    private static final File CPU_PRESSURE = new File("/proc/pressure/cpu");
+
+    /** Memory pressure file */
+    private static final File MEMORY_PRESSURE = new File("/proc/pressure/memory");
+
+    /** Load average file */
+    private static final File LOAD_AVERAGE = new File("/proc/loadavg");
+
+    /** Processor statistics file */
+    private static final File CPU_STATISTICS = new File("/proc/stat");
+
+    /** Number of processors */
+    private static int processors;
+
+    /** Pressure stall information is available */
+    private static boolean psiAvailable;
+
+    /** Governor thread */
+    private static Thread governorThread;
+
+    /**
+     * Start the governor
+     *
+     * The governor is not started if the load average is not available.
+     */
+    public static void start() {
+        if (readLoad() == null || readCpuTimes() == null) {
+            log.warn("System load is not available - co-tenant mode is disabled");
+            return;
+        }
+        processors = Runtime.getRuntime().availableProcessors();
+        psiAvailable = (readStallTime(CPU_PRESSURE) >= 0 && readStallTime(MEMORY_PRESSURE) >= 0);
+        if (psiAvailable)
+            log.info(String.format("Co-tenant mode using pressure stall information, maximum pressure %d%%",
+                                   Main.maxPressure));
+        else
+            log.warn("Pressure stall information is not available - co-tenant mode using the system load");
+        governorThread = new Thread(LoadGovernor::run, "Load governor");
+        governorThread.setDaemon(true);
+        governorThread.start();
+    }
+
+    /**
+     * Pause and resume the CPU workers until the governor is stopped
+     */
+    private static void run() {
+        long checkTime = System.nanoTime();
+        long cpuStall = readStallTime(CPU_PRESSURE);
+        long memoryStall = readStallTime(MEMORY_PRESSURE);
+        long[] cpuTimes = readCpuTimes();
+        long pauseTime = 0;
+        long statusTime = System.currentTimeMillis();
+        double foreground = 0;
+        double peakPressure = 0;
+        double activeTotal = 0;
+        int checks = 0;
+        boolean paused = false;
+        try {
+            while (true) {
+                Thread.sleep(CHECK_INTERVAL);
+                //
+                // Get the stall percentages for the last interval
+                //
+                long currentNanos = System.nanoTime();
+                double elapsed = (double)(currentNanos-checkTime)/1000.0;
+                checkTime = currentNanos;
+                double cpuPressure = 0;
+                double memoryPressure = 0;
+                if (psiAvailable) {
+                    long stall = readStallTime(CPU_PRESSURE);
+                    cpuPressure = 100.0*(double)Math.max(stall-cpuStall, 0)/elapsed;
+                    cpuStall = stall;
+                    stall = readStallTime(MEMORY_PRESSURE);
+                    memoryPressure = 100.0*(double)Math.max(stall-memoryStall, 0)/elapsed;
+                    memoryStall = stall;
+                }
+                double pressure = Math.max(cpuPressure, memoryPressure);
+                peakPressure = Math.max(peakPressure, pressure);
+                //
+                // Get the idle processor capacity for the last interval
+                //
+                long[] times = readCpuTimes();
+                double[] load = readLoad();
+                if (times == null || load == null)
+                    continue;
+                double idleProcessors = (double)processors*(double)(times[0]-cpuTimes[0])/
+                                            (double)Math.max(times[1]-cpuTimes[1], 1);
+                cpuTimes = times;
+                //
+                // Get the active CPU workers in the order they were started
+                //
+                List<MintWorker> cpuWorkers = new ArrayList<>();
+                int active = 0;
+                for (MintWorker worker : Mint.getWorkers()) {
+                    if (!worker.isGpuWorker()) {
+                        cpuWorkers.add(worker);
+                        if (!worker.isPaused())
+                            active++;
+                    }
+                }
+                //
+                // Estimate the foreground load from the runnable tasks, not counting
+                // the active workers and this thread
+                //
+                foreground = (foreground + Math.max(load[1]-(double)active-1.0, 0.0))/2.0;
+                //
+                // Pause workers while the system is under pressure and resume them one at a
+                // time when the pressure is low and there is an idle processor
+                //
+                double limit = (double)Main.maxPressure;
+                boolean overloaded = (psiAvailable ? pressure > limit :
+                                                     foreground + (double)active > (double)processors + 0.5);
+                boolean idle = (!psiAvailable || pressure < limit/2.0) && idleProcessors >= IDLE_THRESHOLD;
+                long currentTime = System.currentTimeMillis();
+                int target = active;
+                if (overloaded && active > 0) {
+                    target = (pressure > 2.0*limit ? active/2 : active-1);
+                    pauseTime = currentTime;
+                } else if (idle && active < cpuWorkers.size() && currentTime-pauseTime >= HOLD_TIME) {
+                    target = active+1;
+                }
+                if (target != active) {
+                    for (int i=0; i<cpuWorkers.size(); i++) {
+                        MintWorker worker = cpuWorkers.get(i);
+                        boolean pause = (i >= target);
+                        if (pause != worker.isPaused()) {
+                            log.debug(String.format("%s CPU worker %d: CPU pressure %.1f%%, memory pressure %.1f%%, "
+                                    + "%.1f idle processors", pause ? "Pausing" : "Resuming", worker.getWorkerId(),
+                                    cpuPressure, memoryPressure, idleProcessors));
+                            worker.setPaused(pause);
+                        }
+                    }
+                    if (target < cpuWorkers.size() && !paused)
+                        log.info(String.format("System load is high - pausing %d of %d CPU workers",
+                                               cpuWorkers.size()-target, cpuWorkers.size()));
+                    else if (target == cpuWorkers.size() && paused)
+                        log.info("System load is low - all CPU workers are running");
+                    paused = (target < cpuWorkers.size());
+                    active = target;
+                }
+                activeTotal += (double)active;
+                checks++;
+                //
+                // Report the average number of active workers
+                //
+                if (currentTime - statusTime >= STATUS_INTERVAL) {
+                    if (paused || activeTotal < (double)(checks*cpuWorkers.size()))
+                        log.info(String.format("Load governor: %.1f of %d CPU workers active, "
+                                + "maximum pressure %.1f%%, load average %.2f",
+                                activeTotal/(double)checks, cpuWorkers.size(), peakPressure, load[0]));
+                    statusTime = currentTime;
+                    peakPressure = 0;
+                    activeTotal = 0;
+                    checks = 0;
+                }
+            }
+        } catch (InterruptedException exc) {
+            for (MintWorker worker : Mint.getWorkers())
+                worker.setPaused(false);
+        }
+    }
+
+    /**
+     * Read the total stall time for some tasks
+     *
+     * @param       file            Pressure file
+     * @return                      Stall time in microseconds or -1 if the file could not be read
+     */
+    private static long readStallTime(File file) {
+        try {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                if (!line.startsWith("some "))
+                    continue;
+                for (String field : line.split(" ")) {
+                    if (field.startsWith("total="))
+                        return Long.parseLong(field.substring(6));
+                }
+            }
+        } catch (IOException | NumberFormatException exc) {
+            // Pressure stall information is not available
+        }
+        return -1;
+    }
+
+    /**
+     * Read the processor times for all processors
+     *
+     * @return                      Idle time (including I/O wait) and total time in clock ticks
+     *                              or null if the times could not be read
+     */
+    private static long[] readCpuTimes() {
+        try {
+            for (String line : Files.readAllLines(CPU_STATISTICS.toPath(), StandardCharsets.UTF_8)) {
+                if (!line.startsWith("cpu "))
+                    continue;
+                String[] fields = line.trim().split(" +");
+                long total = 0;
+                for (int i=1; i<fields.length && i<=8; i++)
+                    total += Long.parseLong(fields[i]);
+                return new long[] {Long.parseLong(fields[4])+Long.parseLong(fields[5]), total};
+            }
+        } catch (IOException | NumberFormatException | IndexOutOfBoundsException exc) {
+            // Processor statistics are not available
+        }
+        return null;
+    }
+
+    /**
+     * Read the system load
+     *
+     * @return                      1-minute load average and number of runnable tasks
+     *                              or null if the load could not be read
+     */
+    private static double[] readLoad() {
+        try {
+            String[] fields = new String(Files.readAllBytes(LOAD_AVERAGE.toPath()), StandardCharsets.UTF_8)
+                                            .trim().split(" ");
+            int sep = fields[3].indexOf('/');
+            return new double[] {Double.parseDouble(fields[0]), Double.parseDouble(fields[3].substring(0, sep))};
+        } catch (IOException | NumberFormatException | IndexOutOfBoundsException exc) {
+            return null;
+        }
+    }
+}
@@ -107,9 +107,15 @@ public class Main {
     /** Deferred exception */
     private static Throwable deferredException;
 
-    /** Nxt node host name */
+    /** Nxt node host names */
     public static String nxtHost = "localhost";
 
+    /** Nxt nodes */
+    public static NodePool nodePool;
+
+    /** Latency percentile used to hedge a read request to a second node (0 to disable) */
+    public static int hedgePercentile = 95;
+
     /** Nxt API port */
     public static int apiPort = 27876;
 
@@ -131,9 +137,33 @@ public class Main {
     /** Currency units */
     public static double currencyUnits;
 
-    /** CPU worker thread count */
+    /** Receive block notifications from the node */
+    public static boolean blockEvents = true;
+
+    /** Maximum number of banked solutions */
+    public static int bankDepth = 10;
+
+    /** CPU worker thread count (-1 to calibrate at startup) */
     public static int cpuThreads = 1;
 
+    /** Maximum temperature in degrees C (0 to disable thermal throttling) */
+    public static int maxTemperature = 0;
+
+    /** Maximum CPU and memory pressure percentage (0 to disable co-tenant mode) */
+    public static int maxPressure = 0;
+
+    /** Pin the CPU workers to processors */
+    public static boolean cpuAffinity = false;
+
+    /** Number of Scrypt nonces hashed together by each CPU worker */
+    public static int scryptLanes = 1;
+
+    /** Scrypt lookup gap (0 to calibrate at startup) */
+    public static int scryptLookupGap = 1;
+
+    /** Worker latency budget (milliseconds) */
+    public static int latencyBudget = 50;
+
     /** GPU intensity */
     public static int gpuIntensity = 0;
 
@@ -170,6 +200,9 @@ public class Main {
     /** Minting target */
     public static MintingTarget mintingTarget;
 
+    /** Minting target calculator */
+    public static TargetCalculator targetCalculator;
+
     /** GPU devices */
     public static final List<GpuDevice> gpuDeviceList = new ArrayList<>();
 
@@ -226,6 +259,15 @@ public class Main {
                 throw new IllegalArgumentException("Currency code is not valid");
             if (gpuIntensity > 1048576)
                 throw new IllegalArgumentException("Maximum gpuIntensity is 1,048,576");
+            List<NxtNode> nodes = new ArrayList<>();
+            for (String spec : nxtHost.split(",")) {
+                spec = spec.trim();
+                if (!spec.isEmpty())
+                    nodes.add(NxtNode.parse(spec, apiPort));
+            }
+            if (nodes.isEmpty())
+                throw new IllegalArgumentException("No Nxt node specified");
+            nodePool = new NodePool(nodes);
             publicKey = Crypto.getPublicKey(secretPhrase);
             accountId = Utils.getAccountId(publicKey);
             //
@@ -243,10 +285,11 @@ public class Main {
             }
             log.info(String.format("%s Version %s", applicationName, applicationVersion));
             log.info(String.format("Application data path: %s", dataPath));
-            log.info(String.format("Using Nxt node at %s://%s:%d", (useSSL ? "https" : "http"), nxtHost, apiPort));
-            log.info(String.format("Minting %,f units of %s for account %s: %d CPU threads, %d GPU intensity",
+            for (NxtNode node : nodes)
+                log.info(String.format("Using Nxt node at %s://%s", (useSSL ? "https" : "http"), node));
+            log.info(String.format("Minting %,f units of %s for account %s: %s CPU threads, %d GPU intensity",
                                    currencyUnits, currencyCode, Utils.getAccountRsId(accountId),
-                                   cpuThreads, gpuIntensity));
+                                   (cpuThreads < 0 ? "AUTO" : Integer.toString(cpuThreads)), gpuIntensity));
             //
             // Open the application lock file
             //
@@ -286,9 +329,9 @@ public class Main {
     private static void startup() {
         try {
             //
-            // Initialize the Nxt API library
+            // Initialize the Nxt API library using the first available node
             //
-            Nxt.init(nxtHost, apiPort, useSSL);
+            nodePool.connect();
             childChain = Nxt.getChain(chainName);
             if (childChain == null)
                 throw new IllegalArgumentException(String.format("Chain '%s' is not defined", chainName));
@@ -326,13 +369,14 @@ public class Main {
             // Get the current minting target
             //
             mintingUnits = BigDecimal.valueOf(currencyUnits).movePointRight(currencyDecimals).longValue();
-            response = Nxt.getMintingTarget(currencyId, accountId, mintingUnits);
-            mintingTarget = new MintingTarget(response);
             if (mintingUnits > maxSupply - reserveSupply)
                 throw new IllegalArgumentException(
                         String.format("Maximum minting units is %s for currency %s",
                                 BigDecimal.valueOf(maxSupply - reserveSupply, currencyDecimals).toPlainString(),
                                 currencyCode));
+            targetCalculator = new TargetCalculator(response);
+            mintingTarget = NodePool.join(nodePool.getMintingTargetAsync());
+            targetCalculator.validate(mintingTarget);
             //
             // Get the GPU device list if GPU intensity is non-zero
             //
@@ -361,6 +405,47 @@ public class Main {
                 }
             }
             //
+            // Use all of the processors for the Scrypt lookup gap calibration and the hash
+            // engine selection if we are calibrating the CPU thread count
+            //
+            boolean calibrateThreads = (cpuThreads < 0);
+            if (calibrateThreads)
+                cpuThreads = Runtime.getRuntime().availableProcessors();
+            //
+            // Calibrate the Scrypt lookup gap for the CPU workers
+            //
+            if (scryptLookupGap == 0) {
+                if (mintingAlgorithm == 5 && cpuThreads > 0)
+                    scryptLookupGap = HashScrypt.calibrateLookupGap(cpuThreads, scryptLanes);
+                else
+                    scryptLookupGap = 1;
+            }
+            //
+            // Select the hash engine for the CPU workers
+            //
+            if (cpuThreads > 0)
+                HashEngine.getEngine(mintingAlgorithm);
+            //
+            // Calibrate the CPU thread count
+            //
+            if (calibrateThreads)
+                cpuThreads = HashEngine.calibrateThreads(mintingAlgorithm);
+            //
+            // Decide whether to pin the CPU workers
+            //
+            if (cpuAffinity)
+                cpuAffinity = (cpuThreads > 0 && CpuTopology.initialize(mintingAlgorithm, cpuThreads));
+            //
+            // Start the thermal governor
+            //
+            if (maxTemperature > 0)
+                ThermalGovernor.start();
+            //
+            // Start the load governor
+            //
+            if (maxPressure > 0)
+                LoadGovernor.start();
+            //
             // Start the GUI
             //
             if (enableGUI) {
@@ -482,6 +567,11 @@ public class Main {
                         case "apiport":
                             apiPort = Integer.valueOf(value);
                             break;
+                        case "hedgepercentile":
+                            hedgePercentile = Integer.valueOf(value);
+                            if (hedgePercentile < 0 || hedgePercentile > 100)
+                                throw new IllegalArgumentException("hedgePercentile must be between 0 and 100");
+                            break;
                         case "usessl":
                             useSSL = Boolean.valueOf(value);
                             break;
@@ -500,8 +590,55 @@ public class Main {
                         case "units":
                             currencyUnits = Double.valueOf(value);
                             break;
+                        case "blockevents":
+                            blockEvents = Boolean.valueOf(value);
+                            break;
+                        case "bankdepth":
+                            bankDepth = Integer.valueOf(value);
+                            if (bankDepth < 1)
+                                throw new IllegalArgumentException("bankDepth must be greater than 0");
+                            break;
                         case "cputhreads":
-                            cpuThreads = Integer.valueOf(value);
+                            if (value.equalsIgnoreCase("auto")) {
+                                cpuThreads = -1;
+                            } else {
+                                cpuThreads = Integer.valueOf(value);
+                                if (cpuThreads < 0)
+                                    throw new IllegalArgumentException("cpuThreads must be 0 or greater or AUTO");
+                            }
+                            break;
+                        case "maxtemperature":
+                            maxTemperature = Integer.valueOf(value);
+                            if (maxTemperature < 0)
+                                throw new IllegalArgumentException("maxTemperature must be 0 or greater");
+                            break;
+                        case "maxpressure":
+                            maxPressure = Integer.valueOf(value);
+                            if (maxPressure < 0 || maxPressure > 100)
+                                throw new IllegalArgumentException("maxPressure must be between 0 and 100");
+                            break;
+                        case "cpuaffinity":
+                            cpuAffinity = Boolean.valueOf(value);
+                            break;
+                        case "scryptlanes":
+                            scryptLanes = Integer.valueOf(value);
+                            if (scryptLanes != 1 && scryptLanes != 2 && scryptLanes != 4)
+                                throw new IllegalArgumentException("scryptLanes must be 1, 2 or 4");
+                            break;
+                        case "scryptlookupgap":
+                            if (value.equalsIgnoreCase("auto")) {
+                                scryptLookupGap = 0;
+                            } else {
+                                scryptLookupGap = Integer.valueOf(value);
+                                if (scryptLookupGap < 1 || scryptLookupGap > 16 ||
+                                        (scryptLookupGap & (scryptLookupGap-1)) != 0)
+                                    throw new IllegalArgumentException("scryptLookupGap must be 1, 2, 4, 8, 16 or AUTO");
+                            }
+                            break;
+                        case "latencybudget":
+                            latencyBudget = Integer.valueOf(value);
+                            if (latencyBudget < 1)
+                                throw new IllegalArgumentException("latencyBudget must be greater than 0");
                             break;
                         case "gpuintensity":
                             gpuIntensity = Integer.valueOf(value);
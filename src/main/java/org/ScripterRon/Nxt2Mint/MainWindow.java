@@ -142,6 +142,12 @@ public final class MainWindow extends JFrame implements ActionListener {
         //
         menuBar.add(new Menu(this, "File", new String[] {"Exit", "exit"}));
         //
+        // Add the "Actions" menu to the menu bar
+        //
+        // The "Actions" menu contains "CPU Threads"
+        //
+        menuBar.add(new Menu(this, "Actions", new String[] {"CPU Threads", "cpuThreads"}));
+        //
         // Add the "Details" menu to the menu bar
         //
         // The "Details" menu contains "Worker details"
@@ -162,8 +168,8 @@ public final class MainWindow extends JFrame implements ActionListener {
         // currency, number of units
         // and target difficulty
         //
-        serverAddressLabel.setText(String.format("<html><b>Server: %s:%d</b></html>",
-                                                 Main.nxtHost, Main.apiPort));
+        serverAddressLabel.setText(String.format("<html><b>Server: %s</b></html>",
+                                                 Main.nodePool.getPrimary()));
         accountLabel.setText(String.format("<html><b>Account: %s</b></html>",
                                                  Utils.getAccountRsId(Main.accountId)));
         currencyLabel.setText(String.format("<html><b>Currency: %s</b></html>", Main.currencyCode));
@@ -296,6 +302,7 @@ public final class MainWindow extends JFrame implements ActionListener {
     public void actionPerformed(ActionEvent ae) {
         //
         // "about"          - Display information about this program
+        // "cpuThreads"     - Change the number of CPU threads
         // "exit"           - Exit the program
         // "workerDetails"  - Open the worker details dialog
         //
@@ -308,6 +315,9 @@ public final class MainWindow extends JFrame implements ActionListener {
             case "about":
                 aboutNxtMint();
                 break;
+            case "cpuThreads":
+                changeCpuThreads();
+                break;
             case "workerDetails":
                 WorkerDetailsDialog.showDialog(this, Mint.getWorkers());
                 break;
@@ -351,6 +361,32 @@ public final class MainWindow extends JFrame implements ActionListener {
         Main.shutdown();
     }
 
+    /**
+     * Change the number of CPU threads
+     *
+     * The workers are stopped and started on a separate thread since a retiring
+     * worker must finish its current batch.
+     */
+    private void changeCpuThreads() {
+        String value = JOptionPane.showInputDialog(this, "Enter the number of CPU threads",
+                                                   Integer.toString(Main.cpuThreads));
+        if (value == null)
+            return;
+        int threads;
+        try {
+            threads = Integer.parseInt(value.trim());
+            if (threads < 0)
+                throw new NumberFormatException();
+        } catch (NumberFormatException exc) {
+            JOptionPane.showMessageDialog(this, "The number of CPU threads must be 0 or greater",
+                                          "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        Thread thread = new Thread(() -> Mint.setCpuThreads(threads));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     /**
      * Display information about the Nxt2Mint application
      */
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+import static org.ScripterRon.Nxt2Mint.Main.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics records counters and gauges for monitoring a running minter.
+ *
+ * A counter is a total that only increases, such as the number of worker failures, and
+ * a gauge is the latest value of a measurement, such as the number of active workers.
+ * The metrics are written to Nxt2Mint.metrics in the application data directory once a
+ * minute with one 'name=value' line for each metric, so they can be collected by a
+ * monitoring system without a network connection to the minter.
+ */
+public class Metrics {
+
+    /** Counters */
+    private static final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    /** Gauges */
+    private static final Map<String, Double> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * Increment a counter
+     *
+     * @param       name            Counter name
+     */
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    /**
+     * Add to a counter
+     *
+     * @param       name            Counter name
+     * @param       delta           Amount to add
+     */
+    public static void add(String name, long delta) {
+        counters.computeIfAbsent(name, (k) -> new AtomicLong()).addAndGet(delta);
+    }
+
+    /**
+     * Return a counter
+     *
+     * @param       name            Counter name
+     * @return                      Counter value or 0 if the counter has not been used
+     */
+    public static long getCount(String name) {
+        AtomicLong counter = counters.get(name);
+        return (counter != null ? counter.get() : 0);
+    }
+
+    /**
+     * Set a gauge
+     *
+     * @param       name            Gauge name
+     * @param       value           Gauge value
+     */
+    public static void setGauge(String name, double value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Record a time measurement
+     *
+     * The measurement is recorded in the name.count and name.total counters and the
+     * name.last and name.max gauges.
+     *
+     * @param       name            Measurement name
+     * @param       millis          Time (milliseconds)
+     */
+    public static void recordTime(String name, long millis) {
+        add(name + ".count", 1);
+        add(name + ".total", millis);
+        setGauge(name + ".last", millis);
+        gauges.merge(name + ".max", (double)millis, Math::max);
+    }
+
+    /**
+     * Return a gauge
+     *
+     * @param       name            Gauge name
+     * @return                      Gauge value or 0 if the gauge has not been set
+     */
+    public static double getGauge(String name) {
+        return gauges.getOrDefault(name, 0.0);
+    }
+
+    /**
+     * Write the metrics file
+     *
+     * The metrics are written to a temporary file which then replaces the metrics file,
+     * so a reader never sees a partial file.
+     */
+    public static void save() {
+        TreeMap<String, String> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, Long.toString(counter.get())));
+        gauges.forEach((name, value) -> values.put(name, formatGauge(value)));
+        List<String> lines = new ArrayList<>(values.size()+1);
+        lines.add("timestamp=" + System.currentTimeMillis()/1000);
+        values.forEach((name, value) -> lines.add(name + "=" + value));
+        File metricsFile = new File(Main.dataPath+Main.fileSeparator+"Nxt2Mint.metrics");
+        File tempFile = new File(Main.dataPath+Main.fileSeparator+"Nxt2Mint.metrics.tmp");
+        try {
+            Files.write(tempFile.toPath(), lines, StandardCharsets.UTF_8);
+            Files.move(tempFile.toPath(), metricsFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException exc) {
+            log.error("Unable to write the metrics file", exc);
+        }
+    }
+
+    /**
+     * Format a gauge value
+     *
+     * @param       value           Gauge value
+     * @return                      Whole number or number with 3 decimal places
+     */
+    private static String formatGauge(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1.0e15)
+            return Long.toString((long)value);
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+}
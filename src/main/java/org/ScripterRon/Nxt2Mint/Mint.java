@@ -23,11 +23,23 @@ import org.ScripterRon.Nxt2API.Response;
 import org.ScripterRon.Nxt2API.Transaction;
 import org.ScripterRon.Nxt2API.Utils;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Mint mints coins for a Nxt Monetary System currency using multiple worker
@@ -35,11 +47,62 @@ import java.util.concurrent.ArrayBlockingQueue;
  */
 public class Mint {
 
+    /** Control file check interval (seconds) */
+    private static final int CONTROL_INTERVAL = 5;
+
+    /** Blockchain status check interval while solutions are banked (milliseconds) */
+    private static final long STATUS_INTERVAL = 30000;
+
+    /** Blockchain status check interval while block notifications are received (milliseconds) */
+    private static final long EVENT_STATUS_INTERVAL = 5*60*1000;
+
+    /** Time after which a prepared minting transaction is created again (milliseconds) */
+    private static final long PREPARE_TIMEOUT = 10*60*1000;
+
+    /** Searched nonce range save interval (milliseconds) */
+    private static final long SAVE_INTERVAL = 60000;
+
+    /** Worker restart delay after the first failure (milliseconds) */
+    private static final long RESTART_DELAY = 5000;
+
+    /** Maximum worker restart delay (milliseconds) */
+    private static final long MAX_RESTART_DELAY = 5*60*1000;
+
+    /** Run time after which a restarted worker no longer counts as failing (milliseconds) */
+    private static final long STABLE_TIME = 10*60*1000;
+
+    /** Worker rate check interval (milliseconds) */
+    private static final long RATE_INTERVAL = 60000;
+
+    /** A worker is flagged when its rate is less than this fraction of the median rate */
+    private static final double LAGGARD_RATE = 0.5;
+
     /** Mint thread */
     private static Thread mintThread;
 
     /** Thread list */
-    private static final List<MintWorker> workers = new ArrayList<>();
+    private static final List<MintWorker> workers = new CopyOnWriteArrayList<>();
+
+    /** Next worker identifier */
+    private static int nextWorkerId;
+
+    /** Workers waiting to be restarted */
+    private static final List<WorkerRestart> restarts = new ArrayList<>();
+
+    /** Consecutive failures for restarted workers */
+    private static final Map<MintWorker, Integer> failureCounts = new HashMap<>();
+
+    /** Hash count and paused time for each worker at the last rate check */
+    private static final Map<MintWorker, long[]> rateSamples = new HashMap<>();
+
+    /** Workers flagged as running slower than their peers */
+    private static final Set<MintWorker> laggards = new HashSet<>();
+
+    /** Last worker rate check */
+    private static long rateTime;
+
+    /** Minting stopped */
+    private static boolean stopped;
 
     /** Thread group */
     private static final ThreadGroup threadGroup = new ThreadGroup("Workers");
@@ -47,14 +110,38 @@ public class Mint {
     /** Solution queue */
     private static final ArrayBlockingQueue<Solution> solutions = new ArrayBlockingQueue<>(10);
 
-    /** Pending queue */
-    private static final List<Solution> pending = new LinkedList<>();
+    /** Minting target broadcast */
+    private static final TargetBroadcast targetBroadcast = new TargetBroadcast();
+
+    /** Nonce allocator */
+    private static final NonceAllocator nonceAllocator = new NonceAllocator();
+
+    /** Solution bank */
+    private static final SolutionBank solutionBank = new SolutionBank();
 
     /** Block height at last solution submission */
     private static int submitHeight;
 
-    /** Counter at last solution submission */
-    private static long submitCounter;
+    /** Solution with a prepared minting transaction */
+    private static Solution preparedSolution;
+
+    /** Prepared minting transaction */
+    private static byte[] preparedTxBytes;
+
+    /** Time the minting transaction was prepared */
+    private static long preparedTime;
+
+    /** Minting transaction being created */
+    private static CompletableFuture<Solution> prepareFuture;
+
+    /** Time when a failed minting transaction can be created again */
+    private static long prepareRetryTime;
+
+    /** Solution submission in progress */
+    private static CompletableFuture<Void> submitFuture;
+
+    /** Block notification time received while a submission was in progress */
+    private static long deferredBlockTime;
 
     /** Current solution counter */
     private static long counter;
@@ -66,7 +153,6 @@ public class Mint {
      * Start minting
      */
     public static void mint() {
-        Response response;
         mintThread = Thread.currentThread();
         //
         // Get the initial currency counter.  We will increment this counter for
@@ -76,119 +162,107 @@ public class Mint {
         //
         counter = Main.mintingTarget.getCounter();
         try {
-            if (!Nxt.getUnconfirmedTransactions(Main.accountId, Main.childChain).isEmpty())
+            if (NodePool.join(Main.nodePool.hasUnconfirmedTransactionsAsync()))
                 counter++;
         } catch (IOException exc) {
             log.error("Unable to get unconfirmed transactions", exc);
         }
         try {
             //
-            // Start the CPU worker threads
+            // Start validating the computed minting target
             //
-            for (int i=0; i<Main.cpuThreads; i++) {
-                MintWorker worker = new MintWorker(i, solutions, false, 0);
-                Thread thread = new Thread(threadGroup, worker);
-                thread.start();
-                workers.add(worker);
-            }
+            Main.targetCalculator.start();
             //
-            // Start the GPU worker threads
+            // Start receiving block notifications
             //
-            if (Main.gpuIntensity > 0) {
-                for (Integer gpuId : Main.gpuDevices) {
-                    MintWorker worker = new MintWorker(workers.size(), solutions, true, gpuId);
-                    Thread thread = new Thread(threadGroup, worker);
-                    thread.start();
-                    workers.add(worker);
+            if (Main.blockEvents)
+                BlockEvents.start();
+            //
+            // Start the CPU and GPU worker threads
+            //
+            synchronized(workers) {
+                for (int i=0; i<Main.cpuThreads; i++)
+                    startWorker(false, 0);
+                if (Main.gpuIntensity > 0) {
+                    for (Integer gpuId : Main.gpuDevices)
+                        startWorker(true, gpuId);
                 }
             }
             //
             // Mint coins until shutdown
             //
             boolean workDispatched = false;
+            long saveTime = System.currentTimeMillis();
+            long statusTime = 0;
             while (true) {
                 if (mintThread.isInterrupted())
                     throw new InterruptedException("Shutting down");
+                checkControlFile();
+                superviseWorkers();
                 //
-                // Process completed solutions
+                // Dispatch the next counter unless the solution bank is full.  The minting
+                // target is computed locally, so the workers do not wait for the server.
                 //
-                if (workDispatched && (pending.isEmpty() || !solutions.isEmpty())) {
-                    Solution solution = solutions.take();
-                    if (solution.getCounter() > submitCounter) {
-                        workDispatched = false;
-                        submitCounter = solution.getCounter();
-                        pending.add(solution);
-                        log.debug(String.format("Solution for counter %d added to pending queue", solution.getCounter()));
-                    }
+                if (!workDispatched && !solutionBank.isFull()) {
+                    mintingTarget = Main.targetCalculator.getMintingTarget(counter);
+                    counter++;
+                    targetBroadcast.publish(mintingTarget);
+                    workDispatched = true;
+                } else if (workDispatched &&
+                            !Arrays.equals(Main.targetCalculator.getTarget(), mintingTarget.getTarget())) {
+                    //
+                    // Publish the corrected target for the current counter.  The nonce allocator
+                    // restarts the search for the counter when it sees the new target.
+                    //
+                    nonceAllocator.save();
+                    mintingTarget = Main.targetCalculator.getMintingTarget(mintingTarget.getCounter());
+                    log.info(String.format("Minting target changed - restarting the search for counter %d with difficulty %,d",
+                                           mintingTarget.getCounter()+1, mintingTarget.getDifficulty()));
+                    targetBroadcast.publish(mintingTarget);
                 }
                 //
-                // Dispatch the new target if the workers are idle
+                // Submit a banked solution
+                //
+                // We can have just one unconfirmed minting transaction at a time.  So we need to hold
+                // additional solutions until a block has been confirmed.  The minting transaction for
+                // the next solution is created in advance and is broadcast by the block event thread
+                // as soon as the node reports a new block.  We poll the server for new blocks when
+                // block notifications are not available and once in a while when they are.  The
+                // server requests run on the node pool threads, so the controller does not wait
+                // for them.
                 //
-                if (!workDispatched) {
-                    try {
-                        response = Nxt.getMintingTarget(Main.currencyId, Main.accountId, Main.mintingUnits);
-                        mintingTarget = new MintingTarget(response);
-                        mintingTarget.setCounter(counter);
-                        counter++;
-                    } catch (IOException exc) {
-                        log.error("Unable to get new minting target", exc);
-                        throw new InterruptedException("Abormal shutdown");
+                if (!solutionBank.isEmpty()) {
+                    long currentTime = System.currentTimeMillis();
+                    prepareSolution();
+                    if (currentTime >= statusTime) {
+                        submitSolution(0);
+                        statusTime = currentTime + (BlockEvents.isActive() ? EVENT_STATUS_INTERVAL : STATUS_INTERVAL);
                     }
-                    workers.forEach((worker) -> worker.newTarget(mintingTarget));
-                    workDispatched = true;
                 }
                 //
-                // Submit a pending solution
+                // Bank completed solutions.  The searched nonce ranges are saved once a minute
+                // while we are waiting for a solution.  The workers stop when the bank is full.
                 //
-                // We can have just one unconfirmed minting transaction at a time.  So we need to hold
-                // additional transactions until a block has been confirmed.  This is usually not a
-                // problem but a block occasionally takes 10 minutes or longer to be generated.  If
-                // this happens, we will poll the server until a new block has been generated.
-                //
-                if (!pending.isEmpty()) {
-                    boolean submitted = false;
-                    try {
-                        response = Nxt.getBlockchainStatus();
-                        int height = response.getInt("numberOfBlocks") - 1;
-                        if (height > submitHeight) {
-                            submitHeight = height;
-                            if (Nxt.getUnconfirmedTransactions(Main.accountId, Main.childChain).isEmpty()) {
-                                Solution solution = pending.get(0);
-                                response = Nxt.currencyMint(Main.currencyId, Main.childChain,
-                                        solution.getNonce(), Main.mintingUnits, solution.getCounter(),
-                                        Main.fee, Main.publicKey);
-                                byte[] txBytes = response.getHexString("unsignedTransactionBytes");
-                                Transaction tx = new Transaction(txBytes);
-                                CurrencyAttachment.MintingAttachment attachment =
-                                        (CurrencyAttachment.MintingAttachment)tx.getAttachment();
-                                if (tx.getSenderId() != Main.accountId || tx.getAmount() != 0 ||
-                                        tx.getFee() != Main.fee || attachment.getCurrencyId() != Main.currencyId) {
-                                    log.error("CurrencyMinting transaction returned by the server is incorrect\n "
-                                        + Utils.toHexString(txBytes));
-
-                                }
-                                response = Nxt.broadcastTransaction(txBytes, Main.secretPhrase);
-                                solution.setTxId(Utils.fullHashToId(response.getHexString("fullHash")));
-                                if (Main.mainWindow != null)
-                                    Main.mainWindow.solutionFound(solution);
-                                log.info(String.format("Solution for counter %d submitted", solution.getCounter()));
-                                submitted = true;
-                                pending.remove(0);
-                            }
+                long wait = (!workDispatched && !solutionBank.isFull() ? 0 : CONTROL_INTERVAL);
+                Solution solution = solutions.poll(wait, TimeUnit.SECONDS);
+                if (solution == null) {
+                    if (System.currentTimeMillis() - saveTime >= SAVE_INTERVAL) {
+                        nonceAllocator.save();
+                        saveTime = System.currentTimeMillis();
+                    }
+                } else if (solutionBank.add(solution)) {
+                    Metrics.increment("bank.solutions");
+                    log.debug(String.format("Solution for counter %d banked after %,d nonces searched, %d solutions banked",
+                                            solution.getCounter(), nonceAllocator.getSearchedCount(),
+                                            solutionBank.size()));
+                    if (solution.getCounter() == mintingTarget.getCounter() + 1) {
+                        workDispatched = false;
+                        if (solutionBank.isFull()) {
+                            log.info(String.format("Solution bank is full with %d solutions - workers are idle",
+                                                   solutionBank.size()));
+                            targetBroadcast.withdraw();
                         }
-                    } catch (NxtException exc) {
-                        log.error("Server rejected 'currencyMint' transaction - discarding");
-                        submitted = true;
-                        pending.remove(0);
-                    } catch (IOException exc) {
-                        log.error("Unable to submit 'currencyMint' transaction - retrying", exc);
-                    } catch (Exception exc) {
-                        log.error("Exceptiong while submitting 'currencyMint' transaction - discarding", exc);
-                        submitted = true;
-                        pending.remove(0);
                     }
-                    if (!submitted)
-                        Thread.sleep(30000);
                 }
             }
         } catch (InterruptedException exc) {
@@ -198,6 +272,240 @@ public class Mint {
         }
     }
 
+    /**
+     * Process a new block reported by the node
+     *
+     * The prepared minting transaction is broadcast immediately if the account has no
+     * unconfirmed transactions.
+     *
+     * @param       eventTime       Time the block notification was received (milliseconds)
+     */
+    public static void blockPushed(long eventTime) {
+        Main.targetCalculator.revalidate();
+        if (!solutionBank.isEmpty())
+            submitSolution(eventTime);
+    }
+
+    /**
+     * Submit the banked solution with the lowest counter
+     *
+     * The solution is submitted if a new block has been generated and the account has
+     * no unconfirmed transactions.  The blockchain status and the unconfirmed transactions
+     * are checked while the minting transaction is created, and the transaction is
+     * broadcast when all three requests are done.  A block notification received while a
+     * submission is in progress starts a new submission when the current one completes.
+     *
+     * The time from the new block to the broadcast of the minting transaction is recorded
+     * in the submit.latency metrics and the time for the whole submission is recorded in
+     * the controller.cycle metrics.
+     *
+     * @param       blockTime       Time the block notification was received or 0 to check
+     *                              the blockchain status for a new block
+     */
+    private static synchronized void submitSolution(long blockTime) {
+        if (submitFuture != null && !submitFuture.isDone()) {
+            if (blockTime != 0)
+                deferredBlockTime = blockTime;
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        CompletableFuture<Long> blockFuture = (blockTime != 0 ? CompletableFuture.completedFuture(blockTime) :
+                                               Main.nodePool.getBlockHeightAsync().thenApply(Mint::newBlock));
+        CompletableFuture<Boolean> unconfirmedFuture = Main.nodePool.hasUnconfirmedTransactionsAsync();
+        CompletableFuture<Solution> solutionFuture = prepareSolution();
+        submitFuture = blockFuture
+                .thenCombine(unconfirmedFuture, (time, unconfirmed) -> (unconfirmed ? 0 : time))
+                .thenAcceptBothAsync(solutionFuture, (time, solution) -> {
+                    if (time != 0 && solution != null)
+                        broadcastSolution(solution, time);
+                }, Main.nodePool.getApiExecutor())
+                .whenComplete((result, exc) -> submitComplete(startTime, exc));
+    }
+
+    /**
+     * Check for a new block
+     *
+     * @param       height          Current block height
+     * @return                      Current time or 0 if there is no new block
+     */
+    private static synchronized long newBlock(int height) {
+        if (height <= submitHeight)
+            return 0;
+        submitHeight = height;
+        Main.targetCalculator.revalidate();
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Complete a solution submission
+     *
+     * @param       startTime       Time the submission was started
+     * @param       exc             Submission exception or null
+     */
+    private static synchronized void submitComplete(long startTime, Throwable exc) {
+        if (exc != null)
+            log.error("Unable to get the blockchain status",
+                      (exc instanceof CompletionException && exc.getCause() != null ? exc.getCause() : exc));
+        Metrics.recordTime("controller.cycle", System.currentTimeMillis() - startTime);
+        submitFuture = null;
+        if (deferredBlockTime != 0) {
+            long blockTime = deferredBlockTime;
+            deferredBlockTime = 0;
+            submitSolution(blockTime);
+        }
+    }
+
+    /**
+     * Broadcast the prepared minting transaction
+     *
+     * @param       solution        Solution with a prepared minting transaction
+     * @param       blockTime       Time the new block was detected
+     */
+    private static void broadcastSolution(Solution solution, long blockTime) {
+        byte[] txBytes;
+        synchronized(Mint.class) {
+            if (solution != preparedSolution)
+                return;
+            txBytes = preparedTxBytes;
+        }
+        try {
+            long startTime = System.currentTimeMillis();
+            Response response = Nxt.broadcastTransaction(txBytes, Main.secretPhrase);
+            long currentTime = System.currentTimeMillis();
+            Metrics.recordTime("api.broadcastTransaction", currentTime - startTime);
+            byte[] fullHash = response.getHexString("fullHash");
+            solution.setTxId(Utils.fullHashToId(fullHash));
+            Metrics.recordTime("submit.latency", currentTime - blockTime);
+            Main.nodePool.broadcast(fullHash);
+            if (Main.mainWindow != null)
+                Main.mainWindow.solutionFound(solution);
+            log.info(String.format("Solution for counter %d submitted", solution.getCounter()));
+            discardSolution(solution);
+            Metrics.increment("bank.submitted");
+        } catch (NxtException exc) {
+            log.error("Server rejected 'currencyMint' transaction - discarding");
+            discardSolution(solution);
+        } catch (IOException exc) {
+            log.error("Unable to submit 'currencyMint' transaction - retrying", exc);
+            Main.nodePool.primaryFailed();
+        } catch (Exception exc) {
+            log.error("Exceptiong while submitting 'currencyMint' transaction - discarding", exc);
+            discardSolution(solution);
+        }
+    }
+
+    /**
+     * Create the minting transaction for the banked solution with the lowest counter
+     *
+     * The transaction is created once and is kept until it is broadcast, so a new block
+     * does not have to wait for the server to create the transaction.  The solution is
+     * checked against the current minting target first and is discarded if it no longer
+     * meets the target, in which case the next banked solution is used.
+     *
+     * @return                      Future for the solution with a prepared transaction or null
+     */
+    private static synchronized CompletableFuture<Solution> prepareSolution() {
+        long currentTime = System.currentTimeMillis();
+        Solution solution = solutionBank.first();
+        if (solution != null && solution == preparedSolution && currentTime - preparedTime < PREPARE_TIMEOUT)
+            return CompletableFuture.completedFuture(solution);
+        if (prepareFuture != null && !prepareFuture.isDone())
+            return prepareFuture;
+        if (currentTime < prepareRetryTime)
+            return CompletableFuture.completedFuture(null);
+        preparedSolution = null;
+        preparedTxBytes = null;
+        while (solution != null && !SolutionBank.verify(solution, Main.targetCalculator.getTarget())) {
+            log.warn(String.format("Solution for counter %d no longer meets the minting target - discarding",
+                                   solution.getCounter()));
+            solutionBank.remove(solution);
+            Metrics.increment("bank.discarded");
+            solution = solutionBank.first();
+        }
+        if (solution == null)
+            return CompletableFuture.completedFuture(null);
+        Solution candidate = solution;
+        prepareFuture = Main.nodePool.supplyAsync(() -> createTransaction(candidate))
+                .handle((txBytes, exc) -> prepareComplete(candidate, txBytes, exc));
+        return prepareFuture;
+    }
+
+    /**
+     * Create the minting transaction for a solution
+     *
+     * @param       solution        Solution
+     * @return                      Unsigned transaction bytes
+     * @throws      Exception       Unable to create the transaction
+     */
+    private static byte[] createTransaction(Solution solution) throws Exception {
+        long startTime = System.currentTimeMillis();
+        Response response = Nxt.currencyMint(Main.currencyId, Main.childChain,
+                solution.getNonce(), Main.mintingUnits, solution.getCounter(),
+                Main.fee, Main.publicKey);
+        Metrics.recordTime("api.currencyMint", System.currentTimeMillis() - startTime);
+        byte[] txBytes = response.getHexString("unsignedTransactionBytes");
+        Transaction tx = new Transaction(txBytes);
+        CurrencyAttachment.MintingAttachment attachment =
+                (CurrencyAttachment.MintingAttachment)tx.getAttachment();
+        //
+        // Don't sign a transaction that doesn't match our request.  The transaction is
+        // created by whichever node is the primary node, so a faulty node is treated as a
+        // failed request and the transaction is created again on the next primary node.
+        //
+        if (tx.getSenderId() != Main.accountId || tx.getAmount() != 0 ||
+                tx.getFee() != Main.fee || attachment.getCurrencyId() != Main.currencyId ||
+                attachment.getNonce() != solution.getNonce() || attachment.getUnits() != Main.mintingUnits ||
+                attachment.getCounter() != solution.getCounter()) {
+            log.error("CurrencyMinting transaction returned by the server is incorrect\n "
+                + Utils.toHexString(txBytes));
+            throw new IOException("CurrencyMinting transaction returned by the server is incorrect");
+        }
+        return txBytes;
+    }
+
+    /**
+     * Complete the creation of a minting transaction
+     *
+     * @param       solution        Solution
+     * @param       txBytes         Unsigned transaction bytes or null if the request failed
+     * @param       exc             Request exception or null if the request succeeded
+     * @return                      Solution with a prepared transaction or null
+     */
+    private static synchronized Solution prepareComplete(Solution solution, byte[] txBytes, Throwable exc) {
+        if (exc == null) {
+            preparedSolution = solution;
+            preparedTxBytes = txBytes;
+            preparedTime = System.currentTimeMillis();
+            return solution;
+        }
+        Throwable cause = (exc instanceof CompletionException && exc.getCause() != null ? exc.getCause() : exc);
+        if (cause instanceof NxtException) {
+            log.error("Server rejected 'currencyMint' transaction - discarding");
+            discardSolution(solution);
+        } else if (cause instanceof IOException) {
+            log.error("Unable to create 'currencyMint' transaction - retrying", cause);
+            Main.nodePool.primaryFailed();
+            prepareRetryTime = System.currentTimeMillis() + STATUS_INTERVAL;
+        } else {
+            log.error("Exceptiong while creating 'currencyMint' transaction - discarding", cause);
+            discardSolution(solution);
+        }
+        return null;
+    }
+
+    /**
+     * Remove a solution from the solution bank
+     *
+     * @param       solution        Solution
+     */
+    private static synchronized void discardSolution(Solution solution) {
+        solutionBank.remove(solution);
+        if (solution == preparedSolution) {
+            preparedSolution = null;
+            preparedTxBytes = null;
+        }
+    }
+
     /**
      * Stop minting
      */
@@ -213,12 +521,295 @@ public class Mint {
             //
             // Stop the worker threads
             //
-            workers.forEach((worker) -> worker.shutdown());
+            synchronized(workers) {
+                stopped = true;
+                workers.forEach((worker) -> worker.shutdown());
+            }
+            //
+            // Save the searched nonce ranges and the final metrics
+            //
+            nonceAllocator.save();
+            Metrics.save();
         } catch (InterruptedException exc) {
             log.error("Unable to wait for workers to terminate", exc);
         }
     }
 
+    /**
+     * Change the number of CPU workers while minting continues
+     *
+     * New workers start on the current minting target.  Retired workers are stopped
+     * and their unfinished nonce ranges are returned to the nonce allocator, so the
+     * search for the current counter continues without losing any work.  The retired
+     * workers are told to stop and a separate thread waits for them, so the caller
+     * does not wait for a worker to finish its current batch.
+     *
+     * @param       threads         Number of CPU workers
+     * @throws      IllegalArgumentException    Thread count is not valid
+     */
+    public static void setCpuThreads(int threads) {
+        if (threads < 0)
+            throw new IllegalArgumentException("CPU thread count must be 0 or greater");
+        List<MintWorker> retired = new ArrayList<>();
+        synchronized(workers) {
+            if (stopped)
+                return;
+            int count = getCpuWorkerCount();
+            if (threads == count)
+                return;
+            log.info(String.format("Changing the number of CPU workers from %d to %d", count, threads));
+            for (; count<threads; count++)
+                startWorker(false, 0);
+            for (int i=restarts.size()-1; i>=0 && count>threads; i--) {
+                if (!restarts.get(i).gpuWorker) {
+                    restarts.remove(i);
+                    count--;
+                }
+            }
+            for (int i=workers.size()-1; i>=0 && count>threads; i--) {
+                MintWorker worker = workers.get(i);
+                if (!worker.isGpuWorker()) {
+                    worker.stop();
+                    workers.remove(i);
+                    forgetWorker(worker);
+                    retired.add(worker);
+                    count--;
+                }
+            }
+            Main.cpuThreads = threads;
+        }
+        if (!retired.isEmpty()) {
+            Thread thread = new Thread(() -> retired.forEach((worker) -> worker.shutdown()), "Worker shutdown");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Start a new worker thread
+     *
+     * @param       gpuWorker       TRUE if this is a GPU worker
+     * @param       gpuId           GPU identifier
+     * @return                      Worker
+     */
+    private static MintWorker startWorker(boolean gpuWorker, int gpuId) {
+        MintWorker worker = new MintWorker(nextWorkerId++, targetBroadcast, solutions, nonceAllocator,
+                                           gpuWorker, gpuId);
+        Thread thread = new Thread(threadGroup, worker);
+        worker.setThread(thread);
+        thread.start();
+        workers.add(worker);
+        return worker;
+    }
+
+    /**
+     * Return the number of CPU workers
+     *
+     * A GPU worker that could not initialize its GPU hashes using the CPU but is
+     * still counted as a GPU worker.  CPU workers waiting to be restarted are counted.
+     *
+     * @return                      Number of CPU workers
+     */
+    private static int getCpuWorkerCount() {
+        int count = 0;
+        for (MintWorker worker : workers) {
+            if (!worker.isGpuWorker())
+                count++;
+        }
+        for (WorkerRestart restart : restarts) {
+            if (!restart.gpuWorker)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Supervise the workers
+     *
+     * A worker that was terminated by an exception is replaced by a new worker.  The
+     * replacement is delayed by 5 seconds after the first failure and the delay doubles
+     * for each further failure, up to 5 minutes, so a worker that fails as soon as it
+     * starts does not flood the log.  The failure count is reset once a worker has run
+     * for 10 minutes.  The nonce range of the failed worker was returned to the nonce
+     * allocator when it stopped, so no nonces are lost.
+     *
+     * Once a minute the hash rate of each worker is compared with the median rate of the
+     * other workers of the same type and a worker that is much slower is flagged.  The
+     * worker counts, failures, restarts and flagged workers are recorded in the metrics.
+     */
+    private static void superviseWorkers() {
+        long currentTime = System.currentTimeMillis();
+        synchronized(workers) {
+            if (stopped)
+                return;
+            //
+            // Schedule a restart for each failed worker
+            //
+            for (MintWorker worker : workers) {
+                if (!worker.isFailed())
+                    continue;
+                workers.remove(worker);
+                worker.shutdown();
+                Integer previous = failureCounts.get(worker);
+                forgetWorker(worker);
+                int failures = (previous != null && currentTime-worker.getCreateTime() < STABLE_TIME ?
+                                                                                        previous+1 : 1);
+                long delay = Math.min(RESTART_DELAY << Math.min(failures-1, 16), MAX_RESTART_DELAY);
+                restarts.add(new WorkerRestart(worker.isGpuWorker(), worker.getGpuId(), failures,
+                                               currentTime+delay));
+                Metrics.increment("workers.failures");
+                log.warn(String.format("Worker %d failed - restarting in %d seconds (failure %d)",
+                                       worker.getWorkerId(), delay/1000, failures));
+            }
+            //
+            // Restart workers when their delay has expired
+            //
+            Iterator<WorkerRestart> it = restarts.iterator();
+            while (it.hasNext()) {
+                WorkerRestart restart = it.next();
+                if (currentTime < restart.restartTime)
+                    continue;
+                it.remove();
+                MintWorker worker = startWorker(restart.gpuWorker, restart.gpuId);
+                failureCounts.put(worker, restart.failures);
+                Metrics.increment("workers.restarts");
+                log.info(String.format("Worker %d started to replace a failed worker", worker.getWorkerId()));
+            }
+            //
+            // Check the worker rates and update the metrics
+            //
+            if (currentTime - rateTime >= RATE_INTERVAL) {
+                checkWorkerRates();
+                int cpuCount = 0;
+                int gpuCount = 0;
+                for (MintWorker worker : workers) {
+                    if (worker.isGpuWorker())
+                        gpuCount++;
+                    else
+                        cpuCount++;
+                }
+                Metrics.setGauge("workers.cpu", cpuCount);
+                Metrics.setGauge("workers.gpu", gpuCount);
+                Metrics.setGauge("workers.restarting", restarts.size());
+                Metrics.setGauge("workers.laggards", laggards.size());
+                Metrics.save();
+                rateTime = currentTime;
+            }
+        }
+    }
+
+    /**
+     * Compare the worker hash rates
+     *
+     * The rate for each worker is the number of nonces hashed since the last check
+     * divided by the time it was not paused by the load governor.  CPU workers are
+     * compared with CPU workers and GPU workers with GPU workers.  Nothing is flagged
+     * on the first check since there is no earlier sample.
+     */
+    private static void checkWorkerRates() {
+        long nanoTime = System.nanoTime();
+        Map<MintWorker, Double> rates = new HashMap<>();
+        for (MintWorker worker : workers) {
+            long hashes = worker.getLifetimeHashes();
+            long pausedTime = worker.getPausedTime();
+            long[] sample = rateSamples.put(worker, new long[] {hashes, pausedTime, nanoTime});
+            if (sample == null)
+                continue;
+            double activeTime = (double)((nanoTime-sample[2]) - (pausedTime-sample[1]))/1.0e9;
+            if (activeTime >= (double)RATE_INTERVAL/2000.0)
+                rates.put(worker, (double)(hashes-sample[0])/activeTime);
+        }
+        double totalRate = 0;
+        for (double rate : rates.values())
+            totalRate += rate;
+        Metrics.setGauge("hash.rate", totalRate);
+        for (int type=0; type<2; type++) {
+            boolean gpuType = (type == 1);
+            List<MintWorker> peers = new ArrayList<>();
+            for (MintWorker worker : rates.keySet()) {
+                if (worker.isGpuWorker() == gpuType)
+                    peers.add(worker);
+            }
+            if (peers.size() < 2)
+                continue;
+            double[] peerRates = new double[peers.size()];
+            for (int i=0; i<peerRates.length; i++)
+                peerRates[i] = rates.get(peers.get(i));
+            Arrays.sort(peerRates);
+            double median = (peerRates.length%2 != 0 ? peerRates[peerRates.length/2] :
+                    (peerRates[peerRates.length/2-1] + peerRates[peerRates.length/2])/2.0);
+            for (MintWorker worker : peers) {
+                double rate = rates.get(worker);
+                if (rate < median*LAGGARD_RATE) {
+                    if (laggards.add(worker)) {
+                        Metrics.increment("workers.laggardsFlagged");
+                        log.warn(String.format("Worker %d is hashing at %,.4f MHash/s, the median rate is %,.4f MHash/s",
+                                               worker.getWorkerId(), rate/1000000.0, median/1000000.0));
+                    }
+                } else if (laggards.remove(worker)) {
+                    log.info(String.format("Worker %d is hashing at %,.4f MHash/s and is no longer flagged",
+                                           worker.getWorkerId(), rate/1000000.0));
+                }
+            }
+        }
+    }
+
+    /**
+     * Discard the supervision state for a worker that has been removed
+     *
+     * @param       worker          Worker
+     */
+    private static void forgetWorker(MintWorker worker) {
+        failureCounts.remove(worker);
+        rateSamples.remove(worker);
+        laggards.remove(worker);
+    }
+
+    /**
+     * Process the control file
+     *
+     * The control file lets a headless minter be adjusted while it is running.  The file
+     * is named Nxt2Mint.control and is in the application data directory.  Each line has
+     * the format 'name=value' and the file is deleted once it has been processed.  The
+     * following commands are supported:
+     *     cpuThreads=n     Change the number of CPU workers
+     */
+    private static void checkControlFile() {
+        File controlFile = new File(Main.dataPath+Main.fileSeparator+"Nxt2Mint.control");
+        if (!controlFile.exists())
+            return;
+        try {
+            List<String> lines = Files.readAllLines(controlFile.toPath(), StandardCharsets.UTF_8);
+            if (!controlFile.delete())
+                log.error("Unable to delete the control file");
+            for (String line : lines) {
+                line = line.trim();
+                if (line.isEmpty() || line.charAt(0) == '#')
+                    continue;
+                int sep = line.indexOf('=');
+                if (sep < 1) {
+                    log.error(String.format("Control command '%s' is not valid", line));
+                    continue;
+                }
+                String option = line.substring(0, sep).trim().toLowerCase();
+                String value = line.substring(sep+1).trim();
+                try {
+                    switch (option) {
+                        case "cputhreads":
+                            setCpuThreads(Integer.valueOf(value));
+                            break;
+                        default:
+                            log.error(String.format("Control command '%s' is not supported", option));
+                    }
+                } catch (IllegalArgumentException exc) {
+                    log.error(String.format("Control command '%s' is not valid: %s", line, exc.getMessage()));
+                }
+            }
+        } catch (IOException exc) {
+            log.error("Unable to read the control file", exc);
+        }
+    }
+
     /**
      * Return the list of workers
      *
@@ -227,4 +818,37 @@ public class Mint {
     public static List<MintWorker> getWorkers() {
         return workers;
     }
+
+    /**
+     * A failed worker waiting to be restarted
+     */
+    private static class WorkerRestart {
+
+        /** GPU worker */
+        private final boolean gpuWorker;
+
+        /** GPU identifier */
+        private final int gpuId;
+
+        /** Consecutive failures */
+        private final int failures;
+
+        /** Restart time (milliseconds) */
+        private final long restartTime;
+
+        /**
+         * Create a worker restart
+         *
+         * @param       gpuWorker       TRUE if this is a GPU worker
+         * @param       gpuId           GPU identifier
+         * @param       failures        Consecutive failures
+         * @param       restartTime     Restart time (milliseconds)
+         */
+        private WorkerRestart(boolean gpuWorker, int gpuId, int failures, long restartTime) {
+            this.gpuWorker = gpuWorker;
+            this.gpuId = gpuId;
+            this.failures = failures;
+            this.restartTime = restartTime;
+        }
+    }
 }
@@ -20,13 +20,16 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Date;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BooleanSupplier;
 
 /**
  * Mint worker
  */
 public class MintWorker implements Runnable {
 
+    /** Maximum CPU batch size */
+    private static final int MAX_CPU_BATCH_SIZE = 64*1024*1024;
+
     /** Worker identifier */
     private final int workerId;
 
@@ -43,16 +46,22 @@ public class MintWorker implements Runnable {
     private long gpuDisabledTime;
 
     /** Worker thread */
-    private Thread thread;
+    private volatile Thread thread;
+
+    /** Target broadcast */
+    private final TargetBroadcast targetBroadcast;
 
-    /** Work queue */
-    private final ArrayBlockingQueue<MintingTarget> workQueue = new ArrayBlockingQueue<>(5);
+    /** Current target epoch (used only by the worker thread) */
+    private TargetBroadcast.Epoch epoch;
 
     /** Solution queue */
     private final ArrayBlockingQueue<Solution> solutionQueue;
 
-    /** CPU hash function */
-    private final HashFunction hashFunction;
+    /** Nonce allocator */
+    private final NonceAllocator nonceAllocator;
+
+    /** CPU hash function (created by the worker thread) */
+    private HashFunction hashFunction;
 
     /** GPU hash function */
     private GpuFunction gpuFunction;
@@ -63,22 +72,50 @@ public class MintWorker implements Runnable {
     /** Nonce */
     private long nonce;
 
+    /** Number of nonces hashed by the last batch */
+    private int batchCount;
+
     /** Start time */
     private volatile long startTime;
 
+    /** CPU batch size (nonces) */
+    private int cpuBatchSize = 1024;
+
+    /** GPU batch size (execution passes) */
+    private int gpuBatchSize = 1;
+
+    /** Worker is paused by the load governor */
+    private volatile boolean paused;
+
+    /** Time spent paused (nanoseconds) */
+    private volatile long pausedTime;
+
+    /** Number of nonces hashed since the worker was created */
+    private volatile long lifetimeHashes;
+
+    /** Worker creation time */
+    private final long createTime = System.currentTimeMillis();
+
+    /** Worker terminated by an exception */
+    private volatile boolean failed;
+
     /**
      * Create a new worker
      *
      * @param workerId              Worker identifier
+     * @param targetBroadcast       Minting target broadcast
      * @param solutionQueue         Hash solution queue
+     * @param nonceAllocator        Nonce allocator
      * @param gpuWorker             TRUE if this is the GPU worker
      * @param gpuId                 GPU identifier
      */
-    public MintWorker(int workerId, ArrayBlockingQueue<Solution> solutionQueue, boolean gpuWorker, int gpuId) {
+    public MintWorker(int workerId, TargetBroadcast targetBroadcast, ArrayBlockingQueue<Solution> solutionQueue,
+                      NonceAllocator nonceAllocator, boolean gpuWorker, int gpuId) {
         this.workerId = workerId;
+        this.targetBroadcast = targetBroadcast;
         this.solutionQueue = solutionQueue;
+        this.nonceAllocator = nonceAllocator;
         this.gpuWorker = gpuWorker;
-        hashFunction = HashFunction.factory(Main.mintingAlgorithm);
         if (gpuWorker) {
             this.gpuId = gpuId;
             try {
@@ -96,7 +133,8 @@ public class MintWorker implements Runnable {
     @Override
     public void run() {
         byte[] hashBytes = new byte[40];
-        thread = Thread.currentThread();
+        BooleanSupplier cancel = () -> targetBroadcast.getCurrent() != epoch || thread.isInterrupted();
+        CpuTopology.Cpu cpu = null;
         if (gpuWorker)
             log.info(String.format("GPU worker %d starting on GPU %d", workerId, gpuId));
         else
@@ -105,17 +143,26 @@ public class MintWorker implements Runnable {
         // Process hashing targets until shutdown
         //
         try {
+            //
+            // Pin a CPU worker before creating the hash function so the hash function
+            // memory is allocated on the local NUMA node
+            //
+            if (!gpuWorker && Main.cpuAffinity)
+                cpu = CpuTopology.pinWorker(workerId);
+            hashFunction = HashFunction.factory(Main.mintingAlgorithm);
             while (true) {
                 //
-                // Get the next hash target
+                // Wait for the next hash target
                 //
-                MintingTarget target = workQueue.take();
+                epoch = targetBroadcast.await(epoch);
+                MintingTarget target = epoch.getTarget();
                 long counter = target.getCounter() + 1;
                 log.debug(String.format("Worker %d starting on counter %d", workerId, counter));
                 byte[] targetBytes = target.getTarget();
                 hashCount = 0;
                 startTime = System.currentTimeMillis();
                 long statusTime = startTime;
+                boolean inputSet = false;
                 //
                 // Hash until the result meets the target, we get a new target
                 // or we are interrupted
@@ -123,23 +170,53 @@ public class MintWorker implements Runnable {
                 while (true) {
                     if (thread.isInterrupted())
                         throw new InterruptedException("Shutting down");
-                    if (!workQueue.isEmpty()) {
+                    if (targetBroadcast.getCurrent() != epoch) {
                         log.debug(String.format("Worker %d abandoning counter %d", workerId, counter));
                         break;
                     }
-                    nonce = (ThreadLocalRandom.current().nextLong() & 0xf0ffffffffffffffL) | ((long) workerId << 56);
-                    ByteBuffer buffer = ByteBuffer.wrap(hashBytes);
-                    buffer.order(ByteOrder.LITTLE_ENDIAN);
-                    buffer.putLong(nonce);
-                    buffer.putLong(Main.currencyId);
-                    buffer.putLong(Main.mintingUnits);
-                    buffer.putLong(counter);
-                    buffer.putLong(Main.accountId);
+                    //
+                    // Wait while the load governor has paused the worker.  The target is
+                    // checked again when the worker is resumed.
+                    //
+                    if (paused) {
+                        waitWhilePaused();
+                        continue;
+                    }
+                    //
+                    // Get the next nonce range from the allocator.  The nonces that were not
+                    // hashed are returned to the allocator when the batch is done.
+                    //
+                    boolean useGpu = (gpuWorker && !gpuDisabled);
+                    NonceRange range;
+                    if (useGpu) {
+                        int globalSize = gpuFunction.getGlobalSize();
+                        int passes = ThermalGovernor.limitPasses(gpuBatchSize);
+                        range = nonceAllocator.allocate(counter, targetBytes, passes*globalSize, globalSize);
+                    } else {
+                        range = nonceAllocator.allocate(counter, targetBytes, cpuBatchSize, 1);
+                    }
+                    if (range == null) {
+                        log.debug(String.format("Worker %d abandoning counter %d", workerId, counter));
+                        break;
+                    }
+                    nonce = range.getStart();
+                    buildInput(hashBytes, nonce, counter);
                     boolean meetsTarget;
-                    if (gpuWorker && !gpuDisabled)
-                        meetsTarget = gpuHash(hashBytes, targetBytes);
-                    else
-                        meetsTarget = cpuHash(hashBytes, targetBytes);
+                    batchCount = 0;
+                    long batchStart = System.nanoTime();
+                    try {
+                        if (useGpu) {
+                            meetsTarget = gpuHash(hashBytes, targetBytes, range.getCount(), cancel);
+                        } else {
+                            if (!inputSet) {
+                                hashFunction.setInput(hashBytes, targetBytes);
+                                inputSet = true;
+                            }
+                            meetsTarget = cpuHash(range.getCount(), cancel);
+                        }
+                    } finally {
+                        nonceAllocator.release(range, batchCount);
+                    }
                     //
                     // Return the solution if the hash meets the target
                     //
@@ -150,6 +227,10 @@ public class MintWorker implements Runnable {
                         break;
                     }
                     //
+                    // Give the processor a rest if the thermal governor is throttling the workers
+                    //
+                    ThermalGovernor.throttle(System.nanoTime()-batchStart, cancel);
+                    //
                     // Print a status message every 60 seconds
                     //
                     long currentTime = System.currentTimeMillis();
@@ -174,9 +255,34 @@ public class MintWorker implements Runnable {
             log.info(String.format("Worker %d stopping", workerId));
         } catch (Throwable exc) {
             log.error(String.format("Worker %d terminated by exception", workerId), exc);
+            failed = true;
+        } finally {
+            if (cpu != null)
+                CpuTopology.release(cpu);
         }
     }
 
+    /**
+     * Set the worker thread
+     *
+     * The thread must be set before it is started so the worker can be stopped at
+     * any time after it has been created.
+     *
+     * @param       thread          Worker thread
+     */
+    public void setThread(Thread thread) {
+        this.thread = thread;
+    }
+
+    /**
+     * Tell the worker to stop without waiting for it to stop
+     */
+    public void stop() {
+        Thread workerThread = thread;
+        if (workerThread != null)
+            workerThread.interrupt();
+    }
+
     /**
      * Stop hashing
      */
@@ -194,44 +300,106 @@ public class MintWorker implements Runnable {
     }
 
     /**
-     * New hash target
+     * Pause or resume the worker
+     *
+     * A paused worker stops at the end of its current batch.
+     *
+     * @param paused                TRUE to pause the worker
+     */
+    public synchronized void setPaused(boolean paused) {
+        this.paused = paused;
+        notifyAll();
+    }
+
+    /**
+     * Check if the worker is paused
+     *
+     * @return                      TRUE if the worker is paused
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Wait until the worker is resumed
      *
-     * @param target                Minting target
+     * @throws InterruptedException Wait interrupted
      */
-    public void newTarget(MintingTarget target) {
+    private synchronized void waitWhilePaused() throws InterruptedException {
+        long pauseStart = System.nanoTime();
         try {
-            workQueue.put(target);
-        } catch (InterruptedException exc) {
-            log.error("Unable to add new target to work queue", exc);
+            while (paused)
+                wait();
+        } finally {
+            pausedTime += System.nanoTime()-pauseStart;
         }
     }
 
+    /**
+     * Build the hash input data
+     *
+     * The input data is in the following format:
+     *     Bytes 0-7:   Nonce
+     *     Bytes 8-15:  Currency identifier
+     *     Bytes 16-23: Minting units
+     *     Bytes 24-31: Counter
+     *     Bytes 32-39: Account identifier
+     *
+     * @param hashBytes             Input data buffer (40 bytes)
+     * @param nonce                 Nonce
+     * @param counter               Minting counter
+     */
+    static void buildInput(byte[] hashBytes, long nonce, long counter) {
+        ByteBuffer buffer = ByteBuffer.wrap(hashBytes);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(nonce);
+        buffer.putLong(Main.currencyId);
+        buffer.putLong(Main.mintingUnits);
+        buffer.putLong(counter);
+        buffer.putLong(Main.accountId);
+    }
+
     /**
      * Hash using CPU threads
      *
-     * @param hashBytes             Bytes to be hashed
-     * @param targetBytes           Target
+     * The batch size is adjusted so that each batch completes within the latency budget.
+     * A batch that is cancelled or finds a solution is not used to adjust the batch size.
+     *
+     * @param batchSize             Number of nonces to hash
+     * @param cancel                Cancel check
      * @return                      TRUE if the hash satisfies the target
      */
-    private boolean cpuHash(byte[] hashBytes, byte[] targetBytes) {
-        boolean meetsTarget = hashFunction.hash(hashBytes, targetBytes, nonce);
-        hashCount += hashFunction.getCount();
+    private boolean cpuHash(int batchSize, BooleanSupplier cancel) {
+        long batchStart = System.nanoTime();
+        boolean meetsTarget = hashFunction.hash(nonce, batchSize, cancel);
+        int count = hashFunction.getCount();
+        hashCount += count;
+        lifetimeHashes += count;
+        batchCount = count;
         if (meetsTarget)
             nonce = hashFunction.getNonce();
+        else if (count == cpuBatchSize)
+            cpuBatchSize = scaleBatchSize(cpuBatchSize, System.nanoTime()-batchStart, MAX_CPU_BATCH_SIZE);
         return meetsTarget;
     }
 
     /**
      * Hash using the GPU
      *
+     * A batch that is cancelled or finds a solution is not used to adjust the batch size.
+     *
      * @param hashBytes             Bytes to be hashed
      * @param targetBytes           Target
+     * @param batchSize             Number of nonces to hash (a multiple of the global size)
+     * @param cancel                Cancel check
      * @return                      TRUE if the hash satisfies the target
      */
-    private boolean gpuHash(byte[] hashBytes, byte[] targetBytes) {
+    private boolean gpuHash(byte[] hashBytes, byte[] targetBytes, int batchSize, BooleanSupplier cancel) {
         boolean meetsTarget = false;
         gpuFunction.setInput(hashBytes, targetBytes);
-        if (!gpuFunction.execute()) {
+        long batchStart = System.nanoTime();
+        int batchPasses = batchSize/gpuFunction.getGlobalSize();
+        if (!gpuFunction.execute(batchPasses, cancel)) {
             log.warn("GPU execution did not complete, probably due to GPU resource shortage");
             log.info("Disabling GPU hashing and reverting to CPU hashing");
             gpuDisabled = true;
@@ -240,13 +408,39 @@ public class MintWorker implements Runnable {
             gpuFunction = null;
         } else {
             meetsTarget = gpuFunction.isSolved();
-            hashCount += gpuFunction.getCount();
+            batchCount = gpuFunction.getCount();
+            hashCount += batchCount;
+            lifetimeHashes += batchCount;
             if (meetsTarget)
                 nonce = gpuFunction.getNonce();
+            else if (batchPasses == gpuBatchSize && batchCount == batchSize)
+                gpuBatchSize = scaleBatchSize(gpuBatchSize, System.nanoTime()-batchStart,
+                                              gpuFunction.getPasses());
         }
         return meetsTarget;
     }
 
+    /**
+     * Scale the batch size to the hash rate measured for the last batch
+     *
+     * The new batch size is the number of nonces (or GPU passes) that this device can
+     * hash in three quarters of the latency budget at the measured rate.  A fast device
+     * takes larger chunks from the nonce allocator than a slow device and each batch
+     * completes within the latency budget.  The batch size changes by at most a factor
+     * of 4 for each batch to smooth out timing noise.
+     *
+     * @param batchSize             Current batch size
+     * @param elapsedTime           Elapsed time for the last batch (nanoseconds)
+     * @param maxBatchSize          Maximum batch size
+     * @return                      New batch size
+     */
+    private static int scaleBatchSize(int batchSize, long elapsedTime, int maxBatchSize) {
+        double budget = (double)Main.latencyBudget*750000.0;
+        double scaled = (double)batchSize*budget/(double)Math.max(elapsedTime, 1);
+        scaled = Math.max(Math.min(scaled, (double)batchSize*4.0), (double)batchSize/4.0);
+        return (int)Math.max(Math.min(scaled, (double)maxBatchSize), 1.0);
+    }
+
     /**
      * Check if this is a GPU worker
      *
@@ -285,6 +479,51 @@ public class MintWorker implements Runnable {
         return rate;
     }
 
+    /**
+     * Return the number of nonces hashed since the worker was created
+     *
+     * @return                      Number of nonces hashed
+     */
+    public long getLifetimeHashes() {
+        return lifetimeHashes;
+    }
+
+    /**
+     * Return the time the worker has spent paused
+     *
+     * @return                      Paused time (nanoseconds)
+     */
+    public long getPausedTime() {
+        return pausedTime;
+    }
+
+    /**
+     * Return the worker creation time
+     *
+     * @return                      Creation time (milliseconds since the epoch)
+     */
+    public long getCreateTime() {
+        return createTime;
+    }
+
+    /**
+     * Check if the worker was terminated by an exception
+     *
+     * @return                      TRUE if the worker failed
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Return the GPU identifier
+     *
+     * @return                      GPU identifier
+     */
+    public int getGpuId() {
+        return gpuId;
+    }
+
     /**
      * Return the worker identifier
      *
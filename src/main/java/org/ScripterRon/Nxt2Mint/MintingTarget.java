@@ -51,6 +51,21 @@ public class MintingTarget {
         this.counter = response.getLong("counter");
     }
 
+    /**
+     * Create the minting target from a computed target
+     *
+     * @param       currencyId              Currency identifier
+     * @param       difficulty              Minting difficulty
+     * @param       target                  Hash target
+     * @param       counter                 Minting counter
+     */
+    public MintingTarget(long currencyId, BigInteger difficulty, byte[] target, long counter) {
+        this.currencyId = currencyId;
+        this.difficulty = difficulty;
+        this.target = target;
+        this.counter = counter;
+    }
+
     /**
      * Return the currency identifier
      *
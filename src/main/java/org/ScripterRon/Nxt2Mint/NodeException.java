@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+
+import java.io.IOException;
+
+/**
+ * NodeException is thrown when the Nxt node returns an error response for a request.
+ *
+ * The node processed the request, so the error is not a node failure and the same
+ * request would fail on any other node.
+ */
+public class NodeException extends IOException {
+
+    /** Error code */
+    private final int errorCode;
+
+    /** Error description */
+    private final String errorDescription;
+
+    /**
+     * Create the exception
+     *
+     * @param       message             Exception message
+     * @param       errorCode           Error code returned by the node
+     * @param       errorDescription    Error description returned by the node
+     */
+    public NodeException(String message, int errorCode, String errorDescription) {
+        super(message);
+        this.errorCode = errorCode;
+        this.errorDescription = errorDescription;
+    }
+
+    /**
+     * Return the error code
+     *
+     * @return                          Error code
+     */
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * Return the error description
+     *
+     * @return                          Error description
+     */
+    public String getErrorDescription() {
+        return errorDescription;
+    }
+}
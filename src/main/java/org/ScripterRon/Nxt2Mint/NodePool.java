@@ -0,0 +1,592 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+import static org.ScripterRon.Nxt2Mint.Main.log;
+
+import org.ScripterRon.Nxt2API.Nxt;
+import org.ScripterRon.Nxt2API.Utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NodePool sends the minter's requests to a list of Nxt nodes.
+ *
+ * The read requests (getMintingTarget, getBlockchainStatus, getUnconfirmedTransactions
+ * and getCurrency) are sent to the healthiest node.  If the node has not responded
+ * when the configured latency percentile for the node has passed, the request is sent
+ * to the next node as well and the first response is used.  A failed request is sent
+ * to the next node right away.  An error response from a node is returned to the
+ * caller since every node would return the same error, and it does not count as a
+ * node failure.
+ *
+ * The requests that create and sign the minting transaction are issued by the Nxt2API
+ * library, which uses a single node.  This primary node is replaced by the healthiest
+ * node when it fails or becomes much slower than another node.  The Nxt2API node is a
+ * global setting, so the Nxt2API requests are run one at a time by a single thread and
+ * the primary node is changed on that thread between two requests.  A minting
+ * transaction broadcast by the primary node is also sent to the other nodes.
+ *
+ * The requests are asynchronous.  Each request returns a CompletableFuture that is
+ * completed by a pool thread, so the minting controller can issue independent requests
+ * at the same time and chain the dependent requests.  The HTTP connections are kept
+ * alive and are reused by the following requests to the same node.
+ */
+public class NodePool {
+
+    /** Read timeout (milliseconds) */
+    private static final int READ_TIMEOUT = 30000;
+
+    /** Hedge delay used until a node has enough latency samples (milliseconds) */
+    private static final long DEFAULT_HEDGE_DELAY = 1000;
+
+    /** Minimum hedge delay (milliseconds) */
+    private static final long MIN_HEDGE_DELAY = 50;
+
+    /** Maximum hedge delay (milliseconds) */
+    private static final long MAX_HEDGE_DELAY = 5000;
+
+    /** Maximum number of idle connections kept alive for each node */
+    private static final int MAX_CONNECTIONS = 8;
+
+    /** Nxt nodes */
+    private final List<NxtNode> nodes;
+
+    /** Request executor */
+    private final ExecutorService executor;
+
+    /** Nxt2API request executor */
+    private final ExecutorService apiExecutor;
+
+    /** Hedge timer */
+    private final ScheduledExecutorService timer;
+
+    /** Primary node */
+    private NxtNode primary;
+
+    /**
+     * Create the node pool
+     *
+     * The first node is the initial primary node.
+     *
+     * @param       nodes           Nxt nodes
+     */
+    public NodePool(List<NxtNode> nodes) {
+        this.nodes = new ArrayList<>(nodes);
+        this.primary = nodes.get(0);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Node request");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.apiExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Nxt API request");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Node hedge timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Metrics.setGauge("nodes.available", nodes.size());
+        //
+        // Keep more idle connections than the default of 5 since hedged requests and
+        // the block event request can use several connections to the same node
+        //
+        if (System.getProperty("http.maxConnections") == null)
+            System.setProperty("http.maxConnections", Integer.toString(MAX_CONNECTIONS));
+    }
+
+    /**
+     * Return the nodes
+     *
+     * @return                      Node list
+     */
+    public List<NxtNode> getNodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    /**
+     * Return the primary node
+     *
+     * @return                      Primary node
+     */
+    public synchronized NxtNode getPrimary() {
+        return primary;
+    }
+
+    /**
+     * Select the initial primary node
+     *
+     * The nodes are tried in the configured order and the first node that returns the
+     * blockchain status becomes the primary node, so the minter can start while a node
+     * is down.  This must be called before any other requests are issued.
+     *
+     * @throws      IOException     No node is available
+     */
+    public void connect() throws IOException {
+        IOException failure = null;
+        for (NxtNode node : nodes) {
+            long startTime = System.currentTimeMillis();
+            try {
+                NodeRequest.issueRequest(node, "getBlockchainStatus", "", READ_TIMEOUT);
+                node.recordSuccess(System.currentTimeMillis() - startTime);
+            } catch (IOException exc) {
+                node.recordFailure();
+                Metrics.increment("nodes.failures");
+                log.warn(String.format("Nxt node %s is not available: %s", node, exc.getMessage()));
+                failure = exc;
+                continue;
+            }
+            synchronized(this) {
+                primary = node;
+            }
+            Nxt.init(node.getHost(), node.getPort(), Main.useSSL);
+            log.info(String.format("Using Nxt node %s", node));
+            return;
+        }
+        throw new IOException("No Nxt node is available", failure);
+    }
+
+    /**
+     * Record a failed request for the primary node
+     *
+     * The healthiest node becomes the primary node if the primary node is no longer
+     * available.
+     */
+    public void primaryFailed() {
+        getPrimary().recordFailure();
+        Metrics.increment("nodes.failures");
+        selectPrimary();
+    }
+
+    /**
+     * Get the current minting target
+     *
+     * @return                      Future for the minting target
+     */
+    public CompletableFuture<MintingTarget> getMintingTargetAsync() {
+        return requestAsync("getMintingTarget",
+                String.format("currency=%s&account=%s&units=%d", Long.toUnsignedString(Main.currencyId),
+                              Long.toUnsignedString(Main.accountId), Main.mintingUnits),
+                response -> {
+                    try {
+                        return new MintingTarget(NodeRequest.getLong(response, "currency"),
+                                                 new BigInteger(NodeRequest.getString(response, "difficulty")),
+                                                 NodeRequest.getHexString(response, "targetBytes"),
+                                                 NodeRequest.getLong(response, "counter"));
+                    } catch (NumberFormatException exc) {
+                        throw new IOException("Minting difficulty is not valid");
+                    }
+                });
+    }
+
+    /**
+     * Get the current block height
+     *
+     * @return                      Future for the block height
+     */
+    public CompletableFuture<Integer> getBlockHeightAsync() {
+        return requestAsync("getBlockchainStatus", "",
+                response -> (int)NodeRequest.getLong(response, "numberOfBlocks") - 1);
+    }
+
+    /**
+     * Check if the account has unconfirmed transactions
+     *
+     * @return                      Future for TRUE if there are unconfirmed transactions
+     */
+    public CompletableFuture<Boolean> hasUnconfirmedTransactionsAsync() {
+        return requestAsync("getUnconfirmedTransactions",
+                String.format("chain=%s&account=%s", Main.chainName, Long.toUnsignedString(Main.accountId)),
+                response -> {
+                    Object transactions = response.get("unconfirmedTransactions");
+                    if (!(transactions instanceof List))
+                        throw new IOException("Response value 'unconfirmedTransactions' is missing or is not valid");
+                    return !((List<?>)transactions).isEmpty();
+                });
+    }
+
+    /**
+     * Get the current currency supply
+     *
+     * @return                      Future for the current supply
+     */
+    public CompletableFuture<Long> getCurrentSupplyAsync() {
+        return requestAsync("getCurrency",
+                String.format("currency=%s&chain=%s", Long.toUnsignedString(Main.currencyId), Main.chainName),
+                response -> NodeRequest.getLong(response, "currentSupplyQNT"));
+    }
+
+    /**
+     * Run a Nxt2API task
+     *
+     * The tasks are run one at a time on the Nxt2API thread so they do not block the
+     * caller and the primary node does not change while a task is running.  An
+     * exception thrown by the task completes the future exceptionally.
+     *
+     * @param       <T>             Result type
+     * @param       task            Task
+     * @return                      Future for the task result
+     */
+    public <T> CompletableFuture<T> supplyAsync(Callable<T> task) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.call();
+            } catch (Exception exc) {
+                throw new CompletionException(exc);
+            }
+        }, apiExecutor);
+    }
+
+    /**
+     * Return the Nxt2API executor
+     *
+     * A task that issues Nxt2API requests must be run by this executor.
+     *
+     * @return                      Executor
+     */
+    public Executor getApiExecutor() {
+        return apiExecutor;
+    }
+
+    /**
+     * Wait for a request to complete
+     *
+     * @param       <T>             Result type
+     * @param       future          Request future
+     * @return                      Request result
+     * @throws      IOException     The request failed or the wait was interrupted
+     */
+    public static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Request interrupted");
+        } catch (ExecutionException exc) {
+            Throwable cause = exc.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            throw new IOException(cause.toString(), cause);
+        }
+    }
+
+    /**
+     * Send a transaction broadcast by the primary node to the other nodes
+     *
+     * The signed transaction is obtained from the primary node and is sent to each of
+     * the other available nodes in the background.  Errors are counted but are
+     * otherwise ignored since the primary node has already accepted the transaction.
+     *
+     * @param       fullHash        Transaction full hash
+     */
+    public void broadcast(byte[] fullHash) {
+        if (nodes.size() < 2)
+            return;
+        NxtNode source = getPrimary();
+        executor.execute(() -> {
+            try {
+                Map<String, Object> response = NodeRequest.issueRequest(source, "getTransactionBytes",
+                        String.format("chain=%s&fullHash=%s", Main.chainName, Utils.toHexString(fullHash)),
+                        READ_TIMEOUT);
+                String params = "transactionBytes=" + NodeRequest.getString(response, "transactionBytes");
+                for (NxtNode node : nodes) {
+                    if (node == source || !node.isAvailable())
+                        continue;
+                    executor.execute(() -> {
+                        try {
+                            NodeRequest.issueRequest(node, "broadcastTransaction", params, READ_TIMEOUT);
+                            Metrics.increment("nodes.broadcasts");
+                        } catch (IOException exc) {
+                            log.debug(String.format("Unable to broadcast transaction to %s: %s",
+                                                    node, exc.getMessage()));
+                            Metrics.increment("nodes.broadcastErrors");
+                        }
+                    });
+                }
+            } catch (IOException exc) {
+                log.debug(String.format("Unable to get transaction from %s: %s", source, exc.getMessage()));
+                Metrics.increment("nodes.broadcastErrors");
+            }
+        });
+    }
+
+    /**
+     * Issue a read request and parse the response
+     *
+     * The request latency is recorded in the api metrics for the request type.
+     *
+     * @param       <T>             Result type
+     * @param       requestType     Request type
+     * @param       params          URL-encoded request parameters or an empty string
+     * @param       parser          Response parser
+     * @return                      Future for the parsed response
+     */
+    private <T> CompletableFuture<T> requestAsync(String requestType, String params, ResponseParser<T> parser) {
+        long startTime = System.currentTimeMillis();
+        return requestAsync(requestType, params).thenApply(response -> {
+            Metrics.recordTime("api." + requestType, System.currentTimeMillis() - startTime);
+            try {
+                return parser.parse(response);
+            } catch (IOException exc) {
+                throw new CompletionException(exc);
+            }
+        });
+    }
+
+    /**
+     * Issue a read request
+     *
+     * The request is sent to the healthiest node and is hedged to the next node if
+     * there is no response within the hedge delay for the first node.  The request
+     * is sent to the next node immediately if a node fails.
+     *
+     * @param       requestType     Request type
+     * @param       params          URL-encoded request parameters or an empty string
+     * @return                      Future for the response
+     */
+    public CompletableFuture<Map<String, Object>> requestAsync(String requestType, String params) {
+        Metrics.increment("nodes.requests");
+        HedgedRequest request = new HedgedRequest(requestType, params, getCandidates());
+        request.start();
+        return request.result;
+    }
+
+    /**
+     * Return the hedge delay for a node
+     *
+     * @param       node            Nxt node
+     * @return                      Hedge delay (milliseconds)
+     */
+    private long getHedgeDelay(NxtNode node) {
+        if (Main.hedgePercentile == 0)
+            return Long.MAX_VALUE;
+        long latency = node.getLatencyPercentile(Main.hedgePercentile);
+        if (latency < 0)
+            return DEFAULT_HEDGE_DELAY;
+        return Math.min(Math.max(latency, MIN_HEDGE_DELAY), MAX_HEDGE_DELAY);
+    }
+
+    /**
+     * Return the nodes in the order they should be used
+     *
+     * The available nodes are ordered by their health score.  The nodes that are
+     * waiting for their retry delay to pass are used only if no other node is available.
+     *
+     * @return                      Candidate nodes
+     */
+    private List<NxtNode> getCandidates() {
+        List<NxtNode> available = new ArrayList<>(nodes.size());
+        List<NxtNode> unavailable = new ArrayList<>(nodes.size());
+        for (NxtNode node : nodes) {
+            if (node.isAvailable())
+                available.add(node);
+            else
+                unavailable.add(node);
+        }
+        available.sort(Comparator.comparingDouble(NxtNode::getScore));
+        unavailable.sort(Comparator.comparingDouble(NxtNode::getScore));
+        Metrics.setGauge("nodes.available", available.size());
+        available.addAll(unavailable);
+        return available;
+    }
+
+    /**
+     * Select the primary node
+     *
+     * The healthiest node becomes the primary node if the primary node is not available
+     * or if its health score is more than twice the score of the healthiest node.
+     * The Nxt2API library is switched to the new node by the Nxt2API thread once the
+     * current Nxt2API request is complete.
+     */
+    private synchronized void selectPrimary() {
+        if (nodes.size() < 2)
+            return;
+        NxtNode best = getCandidates().get(0);
+        if (best == primary || (primary.isAvailable() && best.getScore() * 2 >= primary.getScore()))
+            return;
+        log.info(String.format("Switching from Nxt node %s to Nxt node %s", primary, best));
+        primary = best;
+        apiExecutor.execute(() -> Nxt.init(best.getHost(), best.getPort(), Main.useSSL));
+        Metrics.increment("nodes.failovers");
+    }
+
+    /**
+     * Response parser
+     *
+     * @param       <T>             Result type
+     */
+    private interface ResponseParser<T> {
+
+        /**
+         * Parse the response
+         *
+         * @param       response        Response
+         * @return                      Parsed result
+         * @throws      IOException     Response is not valid
+         */
+        T parse(Map<String, Object> response) throws IOException;
+    }
+
+    /**
+     * A read request that is sent to one or more nodes until a node responds
+     */
+    private class HedgedRequest {
+
+        /** Request type */
+        private final String requestType;
+
+        /** Request parameters */
+        private final String params;
+
+        /** Nodes in the order they are used */
+        private final List<NxtNode> candidates;
+
+        /** Request result */
+        private final CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+
+        /** Next candidate */
+        private int next;
+
+        /** Number of requests in progress */
+        private int pending;
+
+        /** Request has been hedged */
+        private boolean hedged;
+
+        /** Hedge timer task */
+        private ScheduledFuture<?> hedgeTask;
+
+        /**
+         * Create the request
+         *
+         * @param       requestType     Request type
+         * @param       params          Request parameters
+         * @param       candidates      Candidate nodes
+         */
+        private HedgedRequest(String requestType, String params, List<NxtNode> candidates) {
+            this.requestType = requestType;
+            this.params = params;
+            this.candidates = candidates;
+        }
+
+        /**
+         * Send the request to the first node and start the hedge timer
+         */
+        private synchronized void start() {
+            send();
+            long hedgeDelay = getHedgeDelay(candidates.get(0));
+            if (candidates.size() > 1 && hedgeDelay != Long.MAX_VALUE)
+                hedgeTask = timer.schedule(this::hedge, hedgeDelay, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Send the request to the next node if the first node has not responded
+         */
+        private synchronized void hedge() {
+            if (!result.isDone() && !hedged && next < candidates.size()) {
+                hedged = true;
+                Metrics.increment("nodes.hedged");
+                send();
+            }
+        }
+
+        /**
+         * Send the request to the next node
+         *
+         * The request latency or failure is recorded for the node.
+         */
+        private void send() {
+            NxtNode node = candidates.get(next++);
+            pending++;
+            executor.execute(() -> {
+                long startTime = System.currentTimeMillis();
+                Map<String, Object> response = null;
+                IOException failure = null;
+                try {
+                    response = NodeRequest.issueRequest(node, requestType, params, READ_TIMEOUT);
+                    node.recordSuccess(System.currentTimeMillis() - startTime);
+                } catch (NodeException exc) {
+                    node.recordSuccess(System.currentTimeMillis() - startTime);
+                    failure = exc;
+                } catch (IOException exc) {
+                    node.recordFailure();
+                    Metrics.increment("nodes.failures");
+                    log.debug(String.format("%s request to %s failed: %s", requestType, node, exc.getMessage()));
+                    failure = exc;
+                }
+                //
+                // Update the primary node before the caller sees the result
+                //
+                selectPrimary();
+                completed(response, failure);
+            });
+        }
+
+        /**
+         * Process a node response
+         *
+         * The first response completes the request.  A failure sends the request to the
+         * next node and the request fails when there are no more nodes.  An error response
+         * from the node fails the request right away.
+         *
+         * @param       response        Response or null if the request failed
+         * @param       exc             Request exception or null if the request succeeded
+         */
+        private void completed(Map<String, Object> response, IOException exc) {
+            boolean failed = false;
+            synchronized(this) {
+                pending--;
+                if (result.isDone())
+                    return;
+                if (exc == null || exc instanceof NodeException) {
+                    if (hedgeTask != null)
+                        hedgeTask.cancel(false);
+                    failed = (exc != null);
+                } else if (next < candidates.size()) {
+                    send();
+                    return;
+                } else if (pending > 0) {
+                    return;
+                } else {
+                    failed = true;
+                }
+            }
+            if (failed)
+                result.completeExceptionally(exc);
+            else
+                result.complete(response);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+
+import org.ScripterRon.JSON.JSONParser;
+import org.ScripterRon.JSON.ParseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * NodeRequest issues an API request to a Nxt node for the requests that are not
+ * provided by the Nxt2API library or that can be sent to more than one node.
+ *
+ * The request is sent as an HTTP POST to the /nxt path on the node and the JSON
+ * response is returned as a map.  An error response from the node is reported as
+ * a NodeException with the node's error code and description.  The response is always read to
+ * the end so the connection can be kept alive and used for the next request to the
+ * same node.
+ */
+public class NodeRequest {
+
+    /** Connect timeout (milliseconds) */
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    /**
+     * Issue a request
+     *
+     * @param       node            Nxt node
+     * @param       requestType     Request type
+     * @param       params          URL-encoded request parameters or an empty string
+     * @param       readTimeout     Read timeout (milliseconds)
+     * @return                      Response
+     * @throws      NodeException   The node returned an error response
+     * @throws      IOException     Unable to issue the request
+     */
+    public static Map<String, Object> issueRequest(NxtNode node, String requestType, String params,
+                                            int readTimeout) throws IOException {
+        URL url = new URL(String.format("%s://%s/nxt", (Main.useSSL ? "https" : "http"), node));
+        byte[] requestBytes = ("requestType=" + requestType + (params.isEmpty() ? "" : "&" + params))
+                                        .getBytes(StandardCharsets.UTF_8);
+        HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(readTimeout);
+        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+        conn.setRequestProperty("Content-Length", Integer.toString(requestBytes.length));
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(requestBytes);
+        }
+        int code = conn.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK) {
+            try (InputStream in = conn.getErrorStream()) {
+                if (in != null)
+                    readResponse(in);
+            }
+            throw new IOException(String.format("Response code %d for %s request", code, requestType));
+        }
+        byte[] bytes;
+        try (InputStream in = conn.getInputStream()) {
+            bytes = readResponse(in);
+        }
+        Object parsedResponse;
+        try {
+            parsedResponse = JSONParser.parse(new String(bytes, StandardCharsets.UTF_8));
+        } catch (ParseException exc) {
+            throw new IOException(String.format("Invalid response for %s request: %s", requestType, exc.getMessage()));
+        }
+        if (!(parsedResponse instanceof Map))
+            throw new IOException(String.format("Invalid response for %s request", requestType));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> response = (Map<String, Object>)parsedResponse;
+        Object errorCode = response.get("errorCode");
+        if (errorCode != null) {
+            String errorDescription = String.valueOf(response.getOrDefault("errorDescription", errorCode));
+            throw new NodeException(String.format("%s request failed: %s", requestType, errorDescription),
+                                    (errorCode instanceof Number ? ((Number)errorCode).intValue() : -1),
+                                    errorDescription);
+        }
+        return response;
+    }
+
+    /**
+     * Read the response
+     *
+     * @param       in              Response stream
+     * @return                      Response bytes
+     * @throws      IOException     Unable to read the response
+     */
+    private static byte[] readResponse(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) > 0)
+            bytes.write(buffer, 0, count);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Return a numeric response value
+     *
+     * The node returns some numeric values as strings, so either form is accepted.
+     *
+     * @param       response        Response
+     * @param       name            Value name
+     * @return                      Value
+     * @throws      IOException     Value is missing or is not numeric
+     */
+    public static long getLong(Map<String, Object> response, String name) throws IOException {
+        Object value = response.get(name);
+        if (value instanceof Number)
+            return ((Number)value).longValue();
+        if (value instanceof String) {
+            try {
+                return Long.parseUnsignedLong((String)value);
+            } catch (NumberFormatException exc) {
+                // Handled below
+            }
+        }
+        throw new IOException(String.format("Response value '%s' is missing or is not valid", name));
+    }
+
+    /**
+     * Return a string response value
+     *
+     * @param       response        Response
+     * @param       name            Value name
+     * @return                      Value
+     * @throws      IOException     Value is missing
+     */
+    public static String getString(Map<String, Object> response, String name) throws IOException {
+        Object value = response.get(name);
+        if (value == null)
+            throw new IOException(String.format("Response value '%s' is missing", name));
+        return value.toString();
+    }
+
+    /**
+     * Return a hexadecimal response value as a byte array
+     *
+     * @param       response        Response
+     * @param       name            Value name
+     * @return                      Value
+     * @throws      IOException     Value is missing or is not a hexadecimal string
+     */
+    public static byte[] getHexString(Map<String, Object> response, String name) throws IOException {
+        String value = getString(response, name);
+        if ((value.length() & 1) != 0)
+            throw new IOException(String.format("Response value '%s' is not valid", name));
+        byte[] bytes = new byte[value.length() / 2];
+        for (int i=0; i<bytes.length; i++) {
+            int high = Character.digit(value.charAt(i*2), 16);
+            int low = Character.digit(value.charAt(i*2+1), 16);
+            if (high < 0 || low < 0)
+                throw new IOException(String.format("Response value '%s' is not valid", name));
+            bytes[i] = (byte)((high << 4) | low);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+import static org.ScripterRon.Nxt2Mint.Main.log;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * NonceAllocator hands out disjoint nonce ranges to the mint workers and records the
+ * ranges that have been searched for the current minting counter.
+ *
+ * Each worker asks for a range before hashing a batch and reports the number of nonces
+ * it hashed when the batch is done.  The unhashed part of a batch is put on a deque of
+ * returned chunks that is shared by all of the CPU and GPU workers.  The next worker to
+ * ask for a range takes a returned chunk before any new nonces are allocated, splitting
+ * it if the chunk is larger than the worker's batch size.  A nonce is never hashed twice
+ * for the same counter.
+ *
+ * The searched ranges are saved in the application properties, so a search can resume
+ * where it stopped after a restart.  The saved ranges are used only if the currency,
+ * minting units, account and counter are the same and the new target is not easier than
+ * the saved target, since a nonce that did not meet the saved target can then not meet
+ * the new target.  The search for the current counter is restarted the same way when the
+ * target is corrected, so the searched ranges always belong to the saved target.
+ */
+public class NonceAllocator {
+
+    /** First nonce (the GPU kernels return nonce 0 when there is no solution) */
+    private static final long FIRST_NONCE = 1;
+
+    /** Current minting counter */
+    private long counter = -1;
+
+    /** Current hash target */
+    private byte[] target;
+
+    /** Searched nonce ranges (first nonce mapped to last nonce plus 1) */
+    private final TreeMap<Long, Long> searched = new TreeMap<>();
+
+    /** Returned chunks (first nonce and last nonce plus 1) */
+    private final ArrayDeque<long[]> returned = new ArrayDeque<>();
+
+    /** First nonce that has not been allocated */
+    private long next = FIRST_NONCE;
+
+    /** Number of nonces searched for the current counter */
+    private long searchedCount;
+
+    /**
+     * Allocate a nonce range
+     *
+     * The range is taken from the first returned chunk with at least 'granularity' nonces
+     * or from the unallocated nonces if there is no such chunk.  The number of nonces is a
+     * multiple of 'granularity' and is less than 'size' if the returned chunk is shorter.
+     * Chunks shorter than the GPU global size are left for the CPU workers.  The first
+     * allocation for a new counter or a new target discards the ranges searched for the
+     * previous counter or target.
+     *
+     * @param       counter         Minting counter
+     * @param       target          Hash target
+     * @param       size            Maximum number of nonces
+     * @param       granularity     Range size granularity
+     * @return                      Nonce range or null if the counter is no longer current
+     */
+    public synchronized NonceRange allocate(long counter, byte[] target, int size, int granularity) {
+        if (counter != this.counter || !Arrays.equals(target, this.target)) {
+            if (counter < this.counter)
+                return null;
+            startCounter(counter, target);
+        }
+        Iterator<long[]> it = returned.iterator();
+        while (it.hasNext()) {
+            long[] chunk = it.next();
+            long start = chunk[0];
+            long count = Math.min((long)size, chunk[1] - start);
+            count -= count % granularity;
+            if (count == 0)
+                continue;
+            chunk[0] += count;
+            if (chunk[0] == chunk[1])
+                it.remove();
+            return new NonceRange(counter, target, start, (int)count);
+        }
+        long start = next;
+        int count = size - size % granularity;
+        next += count;
+        return new NonceRange(counter, target, start, count);
+    }
+
+    /**
+     * Release a nonce range
+     *
+     * The first 'hashed' nonces in the range are recorded as searched and the rest of the
+     * range is put on the returned chunk deque.  A range allocated for a previous counter
+     * or target is ignored.
+     *
+     * @param       range           Nonce range returned by allocate()
+     * @param       hashed          Number of nonces hashed
+     */
+    public synchronized void release(NonceRange range, int hashed) {
+        if (range.getCounter() != counter || !Arrays.equals(range.getTarget(), target))
+            return;
+        long start = range.getStart();
+        if (hashed < range.getCount())
+            returned.addFirst(new long[] {start + hashed, start + range.getCount()});
+        if (hashed > 0) {
+            addRange(searched, start, start + hashed);
+            searchedCount += hashed;
+        }
+    }
+
+    /**
+     * Return the number of nonces searched for the current counter
+     *
+     * @return                      Number of nonces searched
+     */
+    public synchronized long getSearchedCount() {
+        return searchedCount;
+    }
+
+    /**
+     * Save the searched ranges in the application properties
+     */
+    public synchronized void save() {
+        if (counter < 0 || Main.properties == null)
+            return;
+        StringBuilder ranges = new StringBuilder();
+        searched.forEach((start, end) -> {
+            if (ranges.length() > 0)
+                ranges.append(',');
+            ranges.append(Long.toUnsignedString(start)).append('-').append(Long.toUnsignedString(end));
+        });
+        Main.properties.setProperty("mint.coverage", getKey(counter));
+        Main.properties.setProperty("mint.coverage.target", toNumber(target).toString(16));
+        Main.properties.setProperty("mint.coverage.ranges", ranges.toString());
+        Main.saveProperties();
+    }
+
+    /**
+     * Start the search for a minting counter
+     *
+     * The saved ranges are used if they were searched for the counter with a target
+     * that is not harder than the new target.
+     *
+     * @param       counter         Minting counter
+     * @param       target          Hash target
+     */
+    private void startCounter(long counter, byte[] target) {
+        this.counter = counter;
+        this.target = target;
+        searched.clear();
+        returned.clear();
+        next = FIRST_NONCE;
+        searchedCount = 0;
+        if (Main.properties == null || !getKey(counter).equals(Main.properties.getProperty("mint.coverage")))
+            return;
+        try {
+            BigInteger savedTarget = new BigInteger(Main.properties.getProperty("mint.coverage.target", "0"), 16);
+            if (toNumber(target).compareTo(savedTarget) > 0) {
+                log.info(String.format("Target for counter %d is easier than the saved target - "
+                        + "discarding the searched nonce ranges", counter));
+                return;
+            }
+            String ranges = Main.properties.getProperty("mint.coverage.ranges", "");
+            for (String range : ranges.split(",")) {
+                if (range.isEmpty())
+                    continue;
+                int sep = range.indexOf('-');
+                long start = Long.parseUnsignedLong(range.substring(0, sep));
+                long end = Long.parseUnsignedLong(range.substring(sep + 1));
+                addRange(searched, start, end);
+                searchedCount += end - start;
+            }
+            //
+            // The gaps between the searched ranges become returned chunks and new nonces
+            // are allocated following the last searched range
+            //
+            for (Map.Entry<Long, Long> entry : searched.entrySet()) {
+                if (entry.getKey() > next)
+                    returned.addLast(new long[] {next, entry.getKey()});
+                next = entry.getValue();
+            }
+            log.info(String.format("Resuming counter %d with %,d nonces already searched", counter, searchedCount));
+        } catch (NumberFormatException | IndexOutOfBoundsException exc) {
+            log.error("Saved nonce ranges are not valid - discarding", exc);
+            searched.clear();
+            returned.clear();
+            next = FIRST_NONCE;
+            searchedCount = 0;
+        }
+    }
+
+    /**
+     * Return the search key for a minting counter
+     *
+     * @param       counter         Minting counter
+     * @return                      Search key
+     */
+    private static String getKey(long counter) {
+        return Long.toUnsignedString(Main.currencyId) + "," + Long.toUnsignedString(Main.mintingUnits) + "," +
+                Long.toUnsignedString(Main.accountId) + "," + counter;
+    }
+
+    /**
+     * Convert a little-endian hash target to a number
+     *
+     * @param       target          Hash target
+     * @return                      Target value
+     */
+    private static BigInteger toNumber(byte[] target) {
+        byte[] bytes = new byte[target.length];
+        for (int i=0; i<target.length; i++)
+            bytes[i] = target[target.length-1-i];
+        return new BigInteger(1, bytes);
+    }
+
+    /**
+     * Add a range to a range map, merging it with adjacent and overlapping ranges
+     *
+     * @param       map             Range map
+     * @param       start           First nonce
+     * @param       end             Last nonce plus 1
+     */
+    private static void addRange(TreeMap<Long, Long> map, long start, long end) {
+        if (start >= end)
+            return;
+        Map.Entry<Long, Long> entry = map.floorEntry(start);
+        if (entry != null && entry.getValue() >= start) {
+            start = entry.getKey();
+            end = Math.max(end, entry.getValue());
+        }
+        entry = map.ceilingEntry(start);
+        while (entry != null && entry.getKey() <= end) {
+            end = Math.max(end, entry.getValue());
+            map.remove(entry.getKey());
+            entry = map.ceilingEntry(start);
+        }
+        map.put(start, end);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+
+/**
+ * NonceRange is a contiguous range of nonces allocated to a worker for a minting counter
+ */
+public class NonceRange {
+
+    /** Minting counter */
+    private final long counter;
+
+    /** Hash target */
+    private final byte[] target;
+
+    /** First nonce */
+    private final long start;
+
+    /** Number of nonces */
+    private final int count;
+
+    /**
+     * Create a new nonce range
+     *
+     * @param       counter         Minting counter
+     * @param       target          Hash target
+     * @param       start           First nonce
+     * @param       count           Number of nonces
+     */
+    public NonceRange(long counter, byte[] target, long start, int count) {
+        this.counter = counter;
+        this.target = target;
+        this.start = start;
+        this.count = count;
+    }
+
+    /**
+     * Return the minting counter
+     *
+     * @return                      Minting counter
+     */
+    public long getCounter() {
+        return counter;
+    }
+
+    /**
+     * Return the hash target
+     *
+     * @return                      Hash target
+     */
+    public byte[] getTarget() {
+        return target;
+    }
+
+    /**
+     * Return the first nonce
+     *
+     * @return                      First nonce
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Return the number of nonces
+     *
+     * @return                      Number of nonces
+     */
+    public int getCount() {
+        return count;
+    }
+}
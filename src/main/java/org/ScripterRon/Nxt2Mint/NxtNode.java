@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+
+import java.util.Arrays;
+
+/**
+ * NxtNode is a Nxt node used by the minter along with its health.
+ *
+ * The latencies of the last 100 successful requests are kept so the hedge delay can be
+ * set from a latency percentile.  A node that fails several requests in a row is not
+ * used until a retry delay has passed.  The delay doubles for each further failure up
+ * to 5 minutes and the node is used again as soon as a request succeeds.
+ */
+public class NxtNode {
+
+    /** Number of latency samples */
+    private static final int SAMPLE_COUNT = 100;
+
+    /** Minimum number of samples for a latency percentile */
+    private static final int MIN_SAMPLES = 10;
+
+    /** Consecutive failures before the node is not used */
+    private static final int FAILURE_LIMIT = 3;
+
+    /** Initial retry delay (milliseconds) */
+    private static final long RETRY_DELAY = 5000;
+
+    /** Maximum retry delay (milliseconds) */
+    private static final long MAX_RETRY_DELAY = 5*60*1000;
+
+    /** Host name */
+    private final String host;
+
+    /** API port */
+    private final int port;
+
+    /** Latency samples (milliseconds) */
+    private final long[] samples = new long[SAMPLE_COUNT];
+
+    /** Number of latency samples */
+    private int sampleCount;
+
+    /** Next latency sample */
+    private int sampleIndex;
+
+    /** Smoothed latency (milliseconds) */
+    private double averageLatency;
+
+    /** Consecutive failures */
+    private int failures;
+
+    /** Time when a failed node can be used again */
+    private long retryTime;
+
+    /**
+     * Create a node
+     *
+     * @param       host            Host name
+     * @param       port            API port
+     */
+    public NxtNode(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Create a node from a 'host' or 'host:port' specification
+     *
+     * @param       spec            Node specification
+     * @param       defaultPort     Port used if the specification does not include a port
+     * @return                      Node
+     * @throws      IllegalArgumentException    Node specification is not valid
+     */
+    public static NxtNode parse(String spec, int defaultPort) throws IllegalArgumentException {
+        String host = spec;
+        int port = defaultPort;
+        int sep = spec.lastIndexOf(':');
+        if (sep > 0 && (spec.indexOf(':') == sep || spec.charAt(sep-1) == ']')) {
+            host = spec.substring(0, sep);
+            try {
+                port = Integer.valueOf(spec.substring(sep+1));
+            } catch (NumberFormatException exc) {
+                throw new IllegalArgumentException(String.format("Invalid port in Nxt node '%s'", spec));
+            }
+        }
+        if (host.startsWith("[") && host.endsWith("]"))
+            host = host.substring(1, host.length()-1);
+        if (host.isEmpty() || port <= 0 || port > 65535)
+            throw new IllegalArgumentException(String.format("Nxt node '%s' is not valid", spec));
+        return new NxtNode(host, port);
+    }
+
+    /**
+     * Return the host name
+     *
+     * @return                      Host name
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Return the API port
+     *
+     * @return                      API port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Record a successful request
+     *
+     * @param       latency         Request latency (milliseconds)
+     */
+    public synchronized void recordSuccess(long latency) {
+        samples[sampleIndex] = latency;
+        sampleIndex = (sampleIndex + 1) % SAMPLE_COUNT;
+        sampleCount = Math.min(sampleCount + 1, SAMPLE_COUNT);
+        averageLatency = (averageLatency == 0 ? latency : 0.8 * averageLatency + 0.2 * latency);
+        failures = 0;
+    }
+
+    /**
+     * Record a failed request
+     */
+    public synchronized void recordFailure() {
+        failures++;
+        if (failures >= FAILURE_LIMIT) {
+            long delay = RETRY_DELAY << Math.min(failures - FAILURE_LIMIT, 6);
+            retryTime = System.currentTimeMillis() + Math.min(delay, MAX_RETRY_DELAY);
+        }
+    }
+
+    /**
+     * Check if the node can be used
+     *
+     * @return                      TRUE if the node is healthy or the retry delay has passed
+     */
+    public synchronized boolean isAvailable() {
+        return (failures < FAILURE_LIMIT || System.currentTimeMillis() >= retryTime);
+    }
+
+    /**
+     * Return the health score
+     *
+     * A lower score is better.  The score is the smoothed latency increased for each
+     * consecutive failure.  A node that has not completed a request yet has the score
+     * of a 100 millisecond latency.
+     *
+     * @return                      Health score
+     */
+    public synchronized double getScore() {
+        return (averageLatency == 0 ? 100.0 : averageLatency) * (1 + failures);
+    }
+
+    /**
+     * Return a latency percentile
+     *
+     * @param       percentile      Percentile (1-100)
+     * @return                      Latency (milliseconds) or -1 if there are not enough samples
+     */
+    public synchronized long getLatencyPercentile(int percentile) {
+        if (sampleCount < MIN_SAMPLES)
+            return -1;
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        int index = Math.max((sampleCount * percentile + 99) / 100 - 1, 0);
+        return sorted[Math.min(index, sampleCount - 1)];
+    }
+
+    /**
+     * Return the node as 'host:port'
+     *
+     * @return                      Node string
+     */
+    @Override
+    public String toString() {
+        return (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + port;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * SolutionBank holds solved minting counters until they can be submitted.
+ *
+ * An account can have just one unconfirmed minting transaction, so a solution can be
+ * submitted only after the previous minting transaction has been included in a block.
+ * The workers continue with the following counters while the controller waits and the
+ * solutions are kept in counter order.  The controller submits the solution with the
+ * lowest counter for each new block.  The workers stop when the bank holds the
+ * configured number of solutions and resume as soon as a solution is submitted.
+ *
+ * A banked solution is checked against the current target before it is submitted since
+ * the target can become harder while the solution is waiting.  A solution that no longer
+ * meets the target is discarded.  The server accepts any counter greater than the last
+ * confirmed counter, so the solutions for the following counters are still valid.
+ */
+public class SolutionBank {
+
+    /** Banked solutions by counter */
+    private final ConcurrentSkipListMap<Long, Solution> solutions = new ConcurrentSkipListMap<>();
+
+    /** Highest counter removed from the bank */
+    private volatile long removedCounter = Long.MIN_VALUE;
+
+    /**
+     * Add a solution
+     *
+     * The solution is not added if the bank already has a solution for the counter or
+     * if a solution for the same or a higher counter has been removed from the bank.
+     *
+     * @param       solution        Solution
+     * @return                      TRUE if the solution was added
+     */
+    public boolean add(Solution solution) {
+        if (solution.getCounter() <= removedCounter)
+            return false;
+        boolean added = (solutions.putIfAbsent(solution.getCounter(), solution) == null);
+        Metrics.setGauge("bank.depth", solutions.size());
+        return added;
+    }
+
+    /**
+     * Return the solution with the lowest counter
+     *
+     * @return                      Solution or null if the bank is empty
+     */
+    public Solution first() {
+        Map.Entry<Long, Solution> entry = solutions.firstEntry();
+        return (entry != null ? entry.getValue() : null);
+    }
+
+    /**
+     * Remove a solution
+     *
+     * @param       solution        Solution
+     */
+    public void remove(Solution solution) {
+        solutions.remove(solution.getCounter());
+        removedCounter = Math.max(removedCounter, solution.getCounter());
+        Metrics.setGauge("bank.depth", solutions.size());
+    }
+
+    /**
+     * Return the number of banked solutions
+     *
+     * @return                      Number of solutions
+     */
+    public int size() {
+        return solutions.size();
+    }
+
+    /**
+     * Check if the bank is empty
+     *
+     * @return                      TRUE if there are no banked solutions
+     */
+    public boolean isEmpty() {
+        return solutions.isEmpty();
+    }
+
+    /**
+     * Check if the bank is full
+     *
+     * @return                      TRUE if the bank holds 'bankDepth' solutions
+     */
+    public boolean isFull() {
+        return solutions.size() >= Main.bankDepth;
+    }
+
+    /**
+     * Check if a solution meets a hash target
+     *
+     * @param       solution        Solution
+     * @param       target          Hash target
+     * @return                      TRUE if the solution meets the target
+     */
+    public static boolean verify(Solution solution, byte[] target) {
+        byte[] hashBytes = new byte[40];
+        MintWorker.buildInput(hashBytes, solution.getNonce(), solution.getCounter());
+        HashFunction hashFunction = HashFunction.factory(Main.mintingAlgorithm);
+        hashFunction.setInput(hashBytes, target);
+        return hashFunction.hash(solution.getNonce(), 1, () -> false);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+
+/**
+ * TargetBroadcast publishes the current minting target to the mint workers.
+ *
+ * Each published target starts a new epoch.  A worker remembers the epoch it is working
+ * on and compares it with the current epoch between hashes, which is a single volatile
+ * read.  A worker that falls behind goes straight to the latest target, so targets
+ * never pile up for a slow worker.  Idle workers wait for the next epoch.  The current
+ * target can be withdrawn to stop the workers until the next target is published.
+ */
+public class TargetBroadcast {
+
+    /** Current epoch */
+    private volatile Epoch current;
+
+    /** Last generation number */
+    private long generation;
+
+    /**
+     * Publish a new minting target
+     *
+     * @param       target          Minting target
+     */
+    public synchronized void publish(MintingTarget target) {
+        current = new Epoch(++generation, target);
+        notifyAll();
+    }
+
+    /**
+     * Withdraw the current target
+     *
+     * The workers abandon the current target and wait for the next target.
+     */
+    public synchronized void withdraw() {
+        current = null;
+    }
+
+    /**
+     * Return the current epoch
+     *
+     * @return                      Current epoch or null if no target has been published
+     */
+    public Epoch getCurrent() {
+        return current;
+    }
+
+    /**
+     * Wait for a new epoch
+     *
+     * @param       epoch           Last epoch processed by the caller or null
+     * @return                      Current epoch
+     * @throws      InterruptedException    Wait interrupted
+     */
+    public synchronized Epoch await(Epoch epoch) throws InterruptedException {
+        while (current == null || current == epoch)
+            wait();
+        return current;
+    }
+
+    /**
+     * An Epoch is a minting target and its generation number
+     */
+    public static class Epoch {
+
+        /** Generation number */
+        private final long generation;
+
+        /** Minting target */
+        private final MintingTarget target;
+
+        /**
+         * Create a new epoch
+         *
+         * @param       generation      Generation number
+         * @param       target          Minting target
+         */
+        private Epoch(long generation, MintingTarget target) {
+            this.generation = generation;
+            this.target = target;
+        }
+
+        /**
+         * Return the generation number
+         *
+         * @return                      Generation number
+         */
+        public long getGeneration() {
+            return generation;
+        }
+
+        /**
+         * Return the minting target
+         *
+         * @return                      Minting target
+         */
+        public MintingTarget getTarget() {
+            return target;
+        }
+    }
+}
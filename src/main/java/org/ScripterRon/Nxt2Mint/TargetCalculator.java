@@ -0,0 +1,238 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+import static org.ScripterRon.Nxt2Mint.Main.log;
+
+import org.ScripterRon.Nxt2API.IdentifierException;
+import org.ScripterRon.Nxt2API.Response;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * TargetCalculator computes the minting target from the currency minting parameters.
+ *
+ * The server computes the target for a currency from the minimum and maximum difficulty
+ * and the fraction of the mintable supply that has already been minted:
+ *
+ *     exponent = 256 - minDifficulty - (maxDifficulty - minDifficulty) * currentMintable / totalMintable
+ *     target = (2**exponent - 1) / units
+ *
+ * where the mintable supply excludes the reserve supply.  The target is a 32-byte
+ * little-endian number.  Computing the target locally lets the controller dispatch the
+ * next counter as soon as a solution is found, without a server request.
+ *
+ * The current supply changes when a minting transaction is confirmed, so a background
+ * thread gets the current supply and the server's minting target once a minute and
+ * after each new block.  If the server's target is different from the computed target,
+ * the server's target is used until the two agree again.  A failed request is logged
+ * and minting continues with the last known supply.
+ */
+public class TargetCalculator {
+
+    /** Validation interval (milliseconds) */
+    private static final long VALIDATE_INTERVAL = 60000;
+
+    /** Currency identifier */
+    private final long currencyId;
+
+    /** Minimum difficulty */
+    private final int minDifficulty;
+
+    /** Maximum difficulty */
+    private final int maxDifficulty;
+
+    /** Reserve supply */
+    private final long reserveSupply;
+
+    /** Maximum supply */
+    private final long maxSupply;
+
+    /** Current supply */
+    private long currentSupply;
+
+    /** Current hash target */
+    private byte[] target;
+
+    /** Current difficulty */
+    private BigInteger difficulty;
+
+    /** Server target is used instead of the computed target */
+    private boolean corrected;
+
+    /** Validation requested */
+    private boolean validateRequested;
+
+    /** Validation thread */
+    private Thread validateThread;
+
+    /**
+     * Create the target calculator from the response for 'getCurrency'
+     *
+     * @param       response                Response for getCurrency request
+     * @throws      IdentifierException     Invalid currency identifier
+     * @throws      NumberFormatException   Invalid numeric string
+     */
+    public TargetCalculator(Response response) throws IdentifierException, NumberFormatException {
+        this.currencyId = response.getId("currency");
+        this.minDifficulty = response.getInt("minDifficulty");
+        this.maxDifficulty = response.getInt("maxDifficulty");
+        this.reserveSupply = response.getLong("reserveSupplyQNT");
+        this.maxSupply = response.getLong("maxSupplyQNT");
+        setSupply(response.getLong("currentSupplyQNT"));
+    }
+
+    /**
+     * Return the minting target for a counter
+     *
+     * @param       counter         Last minting counter
+     * @return                      Minting target
+     */
+    public synchronized MintingTarget getMintingTarget(long counter) {
+        return new MintingTarget(currencyId, difficulty, target, counter);
+    }
+
+    /**
+     * Return the current hash target
+     *
+     * @return                      Hash target
+     */
+    public synchronized byte[] getTarget() {
+        return target;
+    }
+
+    /**
+     * Compare the computed target with the server target
+     *
+     * The server target is used if it is different from the computed target.
+     *
+     * @param       serverTarget    Minting target returned by the server
+     * @return                      TRUE if the targets are the same
+     */
+    public synchronized boolean validate(MintingTarget serverTarget) {
+        if (corrected) {
+            corrected = false;
+            setSupply(currentSupply);
+        }
+        if (Arrays.equals(target, serverTarget.getTarget()))
+            return true;
+        log.warn(String.format("Computed minting difficulty %,d does not match server difficulty %,d - "
+                + "using the server target", difficulty, serverTarget.getDifficulty()));
+        target = serverTarget.getTarget();
+        difficulty = serverTarget.getDifficulty();
+        corrected = true;
+        Metrics.increment("target.corrections");
+        return false;
+    }
+
+    /**
+     * Start the validation thread
+     */
+    public void start() {
+        validateThread = new Thread(this::run, "Target validator");
+        validateThread.setDaemon(true);
+        validateThread.start();
+    }
+
+    /**
+     * Validate the target as soon as possible
+     */
+    public synchronized void revalidate() {
+        validateRequested = true;
+        notifyAll();
+    }
+
+    /**
+     * Validate the target until the thread is interrupted
+     */
+    private void run() {
+        try {
+            while (true) {
+                synchronized(this) {
+                    if (!validateRequested)
+                        wait(VALIDATE_INTERVAL);
+                    validateRequested = false;
+                }
+                try {
+                    CompletableFuture<Long> supplyFuture = Main.nodePool.getCurrentSupplyAsync();
+                    MintingTarget serverTarget = NodePool.join(Main.nodePool.getMintingTargetAsync());
+                    long supply = NodePool.join(supplyFuture);
+                    synchronized(this) {
+                        if (supply != currentSupply) {
+                            log.debug(String.format("Currency supply changed from %d to %d", currentSupply, supply));
+                            setSupply(supply);
+                        }
+                        validate(serverTarget);
+                    }
+                } catch (IOException exc) {
+                    log.warn(String.format("Unable to validate the minting target: %s", exc.getMessage()));
+                    Metrics.increment("target.validationErrors");
+                }
+            }
+        } catch (InterruptedException exc) {
+            // Shutting down
+        }
+    }
+
+    /**
+     * Set the current supply and compute the target
+     *
+     * @param       supply          Current supply
+     */
+    private void setSupply(long supply) {
+        currentSupply = supply;
+        BigInteger numericTarget = getNumericTarget(minDifficulty, maxDifficulty, Main.mintingUnits,
+                                                    supply - reserveSupply, maxSupply - reserveSupply);
+        target = getTarget(numericTarget);
+        difficulty = BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE).divide(numericTarget);
+    }
+
+    /**
+     * Compute the numeric target
+     *
+     * The calculation is the same as the server calculation, including the integer
+     * arithmetic for the exponent.
+     *
+     * @param       minDifficulty   Minimum difficulty
+     * @param       maxDifficulty   Maximum difficulty
+     * @param       units           Minting units
+     * @param       currentMintable Current mintable supply
+     * @param       totalMintable   Total mintable supply
+     * @return                      Numeric target
+     */
+    static BigInteger getNumericTarget(int minDifficulty, int maxDifficulty, long units,
+                                       long currentMintable, long totalMintable) {
+        int exp = (int)(256 - minDifficulty -
+                        ((long)(maxDifficulty - minDifficulty) * currentMintable) / Math.max(totalMintable, 1));
+        return BigInteger.ONE.shiftLeft(exp).subtract(BigInteger.ONE).divide(BigInteger.valueOf(Math.max(units, 1)));
+    }
+
+    /**
+     * Convert a numeric target to a 32-byte little-endian hash target
+     *
+     * @param       numericTarget   Numeric target
+     * @return                      Hash target
+     */
+    static byte[] getTarget(BigInteger numericTarget) {
+        byte[] bytes = numericTarget.toByteArray();
+        byte[] target = new byte[32];
+        for (int i=0; i<target.length && i<bytes.length; i++)
+            target[i] = bytes[bytes.length-1-i];
+        return target;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+import static org.ScripterRon.Nxt2Mint.Main.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Thermal governor
+ *
+ * The governor reads the temperature sensors in /sys/class/thermal and /sys/class/hwmon
+ * once a second and adjusts a duty cycle for the workers so the hottest sensor stays
+ * below the configured maximum temperature.  A worker sleeps after each batch for the
+ * part of the cycle that it is not allowed to run, and a GPU worker also reduces the
+ * number of execution passes in each batch so the GPU is idle in shorter intervals.
+ * Backing off before the firmware starts throttling the processor gives a steadier hash
+ * rate than letting the hardware reduce the clock speed.
+ */
+public class ThermalGovernor {
+
+    /** Sensor check interval (milliseconds) */
+    private static final long CHECK_INTERVAL = 1000;
+
+    /** Status message interval (milliseconds) */
+    private static final long STATUS_INTERVAL = 60000;
+
+    /** Longest sleep between cancel checks while throttling (milliseconds) */
+    private static final long SLEEP_SLICE = 10;
+
+    /** Minimum duty cycle */
+    private static final double MIN_DUTY_CYCLE = 0.10;
+
+    /** Temperature drop below the maximum before the duty cycle is increased (degrees C) */
+    private static final double HYSTERESIS = 3.0;
+
+    /** Temperature sensor files (millidegrees C) */
+    private static final List<File> sensors = new ArrayList<>();
+
+    /** Current duty cycle (1.0 when the workers are not throttled) */
+    private static volatile double dutyCycle = 1.0;
+
+    /** Time spent hashing by the workers (nanoseconds) */
+    private static final AtomicLong busyTime = new AtomicLong();
+
+    /** Time spent sleeping by the workers (nanoseconds) */
+    private static final AtomicLong throttledTime = new AtomicLong();
+
+    /** Governor thread */
+    private static Thread governorThread;
+
+    /**
+     * Start the governor
+     *
+     * The governor is not started if no temperature sensors are found.
+     */
+    public static void start() {
+        findSensors();
+        if (sensors.isEmpty()) {
+            log.warn("No temperature sensors found - thermal throttling is disabled");
+            return;
+        }
+        log.info(String.format("Thermal governor using %d sensors, maximum temperature %dC",
+                               sensors.size(), Main.maxTemperature));
+        governorThread = new Thread(ThermalGovernor::run, "Thermal governor");
+        governorThread.setDaemon(true);
+        governorThread.start();
+    }
+
+    /**
+     * Throttle a worker after a batch
+     *
+     * The worker sleeps long enough that the batch time is the duty cycle fraction of
+     * the total time.  The sleep ends early when the cancel check returns TRUE, so a
+     * throttled worker still reacts quickly to a new target.
+     *
+     * @param       batchTime       Batch time (nanoseconds)
+     * @param       cancel          Cancel check
+     * @throws      InterruptedException    Sleep interrupted
+     */
+    public static void throttle(long batchTime, BooleanSupplier cancel) throws InterruptedException {
+        double duty = dutyCycle;
+        busyTime.addAndGet(batchTime);
+        if (duty >= 1.0)
+            return;
+        long startTime = System.nanoTime();
+        long endTime = startTime + (long)((double)batchTime*(1.0-duty)/duty);
+        long currentTime = startTime;
+        while (currentTime < endTime && !cancel.getAsBoolean()) {
+            Thread.sleep(Math.max(Math.min((endTime-currentTime)/1000000, SLEEP_SLICE), 1));
+            currentTime = System.nanoTime();
+        }
+        throttledTime.addAndGet(currentTime-startTime);
+    }
+
+    /**
+     * Reduce the number of GPU execution passes for the current duty cycle
+     *
+     * @param       passes          Number of execution passes
+     * @return                      Number of execution passes to run
+     */
+    public static int limitPasses(int passes) {
+        double duty = dutyCycle;
+        if (duty >= 1.0)
+            return passes;
+        return Math.max((int)Math.ceil((double)passes*duty), 1);
+    }
+
+    /**
+     * Adjust the duty cycle until the governor is stopped
+     */
+    private static void run() {
+        long statusTime = System.currentTimeMillis();
+        double maxSeen = 0;
+        try {
+            while (true) {
+                Thread.sleep(CHECK_INTERVAL);
+                double temperature = readTemperature();
+                if (temperature <= 0)
+                    continue;
+                maxSeen = Math.max(maxSeen, temperature);
+                //
+                // Back off in proportion to the overshoot and recover slowly once the
+                // temperature is comfortably below the limit
+                //
+                double duty = dutyCycle;
+                double limit = (double)Main.maxTemperature;
+                if (temperature > limit)
+                    duty -= 0.05*(1.0 + (temperature-limit)/2.0);
+                else if (temperature < limit-HYSTERESIS)
+                    duty += 0.02;
+                duty = Math.max(Math.min(duty, 1.0), MIN_DUTY_CYCLE);
+                if (duty != dutyCycle) {
+                    if (dutyCycle >= 1.0)
+                        log.info(String.format("Temperature %.1fC exceeds %dC - throttling workers",
+                                               temperature, Main.maxTemperature));
+                    else if (duty >= 1.0)
+                        log.info(String.format("Temperature %.1fC - workers no longer throttled", temperature));
+                    dutyCycle = duty;
+                }
+                //
+                // Report the throttling and the effective hash rate
+                //
+                long currentTime = System.currentTimeMillis();
+                if (currentTime - statusTime >= STATUS_INTERVAL) {
+                    long busy = busyTime.getAndSet(0);
+                    long throttled = throttledTime.getAndSet(0);
+                    double rate = 0;
+                    for (MintWorker worker : Mint.getWorkers())
+                        rate += worker.getRate();
+                    if (throttled > 0)
+                        log.info(String.format("Thermal governor: maximum %.1fC, duty cycle %.0f%%, "
+                                + "throttled %.1f%% of worker time, effective rate %,.4f MHash/s",
+                                maxSeen, dutyCycle*100.0, 100.0*(double)throttled/(double)(busy+throttled),
+                                rate/1000000.0));
+                    statusTime = currentTime;
+                    maxSeen = 0;
+                }
+            }
+        } catch (InterruptedException exc) {
+            dutyCycle = 1.0;
+        }
+    }
+
+    /**
+     * Find the temperature sensors
+     */
+    private static void findSensors() {
+        sensors.clear();
+        File[] zones = new File("/sys/class/thermal").listFiles((dir, name) -> name.startsWith("thermal_zone"));
+        if (zones != null) {
+            for (File zone : zones) {
+                File sensor = new File(zone, "temp");
+                if (sensor.canRead())
+                    sensors.add(sensor);
+            }
+        }
+        File[] hwmons = new File("/sys/class/hwmon").listFiles((dir, name) -> name.startsWith("hwmon"));
+        if (hwmons != null) {
+            for (File hwmon : hwmons) {
+                File[] inputs = hwmon.listFiles((dir, name) -> name.matches("temp[0-9]+_input"));
+                if (inputs == null)
+                    continue;
+                for (File sensor : inputs) {
+                    if (sensor.canRead())
+                        sensors.add(sensor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the highest sensor temperature
+     *
+     * @return                      Temperature in degrees C or 0 if no sensor could be read
+     */
+    private static double readTemperature() {
+        double temperature = 0;
+        for (File sensor : sensors) {
+            try {
+                String value = new String(Files.readAllBytes(sensor.toPath()), StandardCharsets.UTF_8).trim();
+                temperature = Math.max(temperature, Double.parseDouble(value)/1000.0);
+            } catch (IOException | NumberFormatException exc) {
+                // Sensor is not available
+            }
+        }
+        return temperature;
+    }
+}
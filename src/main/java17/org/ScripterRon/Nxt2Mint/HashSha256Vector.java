@@ -0,0 +1,346 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+import static org.ScripterRon.Nxt2Mint.Main.log;
+
+import java.util.function.BooleanSupplier;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Multi-buffer SHA-256 hash function using the Java vector API
+ *
+ * Each vector lane holds the state for a different nonce, so a single pass through
+ * the compression function hashes one nonce per lane (8 lanes for 256-bit vectors and
+ * 16 lanes for 512-bit vectors).  The nonce-independent message schedule words are
+ * computed once by setInput() just like HashSha256.
+ *
+ * This class is in the Java 17 part of the multi-release jar and requires the
+ * jdk.incubator.vector module.  HashFunction.factory() uses HashSha256 if the
+ * class can't be loaded.
+ */
+public class HashSha256Vector extends HashFunction {
+
+    /** SHA-256 round constants */
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    /** SHA-256 initial hash values */
+    private static final int[] H = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    /** Vector species (must be a constant for the JIT compiler to use vector instructions) */
+    private static final VectorSpecies<Integer> species = IntVector.SPECIES_PREFERRED;
+
+    /** Number of lanes */
+    private static final int lanes = species.length();
+
+    /** Number of hashes between cancel checks (must be a power of 2 and a multiple of the lane count) */
+    private static final int CANCEL_INTERVAL = 1024;
+
+    /** Scalar message schedule words 2-15 */
+    private final int[] W = new int[16];
+
+    /** Nonce-independent parts of message schedule words 16-31 */
+    private final int[] C = new int[32];
+
+    /** Message schedule words 0-1 and 16-63 for each lane */
+    private final int[] vW;
+
+    /** Final state words for each lane */
+    private final int[] vH;
+
+    /** Target as little-endian words */
+    private final int[] targetWords = new int[8];
+
+    /**
+     * Create a SHA-256 hash function using the preferred vector size
+     */
+    public HashSha256Vector() {
+        vW = new int[64*lanes];
+        vH = new int[8*lanes];
+        log.debug(String.format("Using %d-lane vector SHA-256", lanes));
+    }
+
+    /**
+     * Return the number of nonces hashed in each pass
+     *
+     * @return                      Number of lanes
+     */
+    public int getLanes() {
+        return lanes;
+    }
+
+    /**
+     * Set the input data and the hash target
+     *
+     * @param       input           Input bytes (40 bytes)
+     * @param       target          Target (32 bytes)
+     */
+    @Override
+    public void setInput(byte[] input, byte[] target) {
+        for (int i=2; i<10; i++) {
+            W[i] = ((input[i*4] & 0xff) << 24) |
+                   ((input[i*4+1] & 0xff) << 16) |
+                   ((input[i*4+2] & 0xff) << 8) |
+                   (input[i*4+3] & 0xff);
+        }
+        W[10] = 0x80000000;
+        W[11] = 0;
+        W[12] = 0;
+        W[13] = 0;
+        W[14] = 0;
+        W[15] = 320;
+        for (int t=16; t<32; t++) {
+            int c = 0;
+            if (t-2 < 16)
+                c += s1(W[t-2]);
+            if (t-7 < 16)
+                c += W[t-7];
+            if (t-15 >= 2 && t-15 < 16)
+                c += s0(W[t-15]);
+            if (t-16 >= 2)
+                c += W[t-16];
+            C[t] = c;
+        }
+        for (int i=0; i<8; i++) {
+            targetWords[i] = (target[i*4] & 0xff) |
+                             ((target[i*4+1] & 0xff) << 8) |
+                             ((target[i*4+2] & 0xff) << 16) |
+                             ((target[i*4+3] & 0xff) << 24);
+        }
+    }
+
+    /**
+     * Hash a range of nonces
+     *
+     * @param       firstNonce      First nonce
+     * @param       count           Number of nonces
+     * @param       cancel          Cancel check (called every 1024 hashes)
+     * @return                      TRUE if the target was met
+     */
+    @Override
+    public boolean hash(long firstNonce, int count, BooleanSupplier cancel) {
+        nonce = firstNonce - 1;
+        hashCount = 0;
+        boolean meetsTarget = false;
+        //
+        // Keep hashing until we meet the target, hash all of the nonces or are cancelled
+        //
+        while (hashCount < count && !meetsTarget) {
+            if ((hashCount & (CANCEL_INTERVAL-1)) == 0 && cancel.getAsBoolean())
+                break;
+            int active = Math.min(count - hashCount, lanes);
+            meetsTarget = doHash(active);
+            hashCount += active;
+        }
+        //
+        // Don't count the nonces following the solution
+        //
+        if (meetsTarget)
+            hashCount = (int)(nonce - firstNonce + 1);
+        return meetsTarget;
+    }
+
+    /**
+     * Hash the next nonce in each lane
+     *
+     * All of the lanes are always hashed but only the first 'active' lanes are checked
+     * against the target.
+     *
+     * @param       active          Number of lanes to check
+     * @return                      TRUE if the target is met
+     */
+    private boolean doHash(int active) {
+        //
+        // Lane n hashes nonce+n+1.  The nonce is in W0 and W1.
+        //
+        for (int l=0; l<lanes; l++) {
+            long laneNonce = nonce + l + 1;
+            vW[l] = Integer.reverseBytes((int)laneNonce);
+            vW[lanes+l] = Integer.reverseBytes((int)(laneNonce >>> 32));
+        }
+        expand();
+        compress();
+        //
+        // Check the most significant word for each lane and then check the
+        // remaining words for the lanes that might meet the target
+        //
+        boolean checkLanes = false;
+        for (int l=0; l<active && !checkLanes; l++)
+            checkLanes = (Integer.compareUnsigned(Integer.reverseBytes(vH[7*lanes+l]), targetWords[7]) <= 0);
+        if (!checkLanes) {
+            nonce += active;
+            return false;
+        }
+        for (int l=0; l<active; l++) {
+            int cmp = 0;
+            for (int i=7; i>=0 && cmp==0; i--)
+                cmp = Integer.compareUnsigned(Integer.reverseBytes(vH[i*lanes+l]), targetWords[i]);
+            if (cmp <= 0) {
+                nonce += l + 1;
+                for (int i=0; i<8; i++) {
+                    int word = vH[i*lanes+l];
+                    digest[i*4] = (byte)(word >>> 24);
+                    digest[i*4+1] = (byte)(word >>> 16);
+                    digest[i*4+2] = (byte)(word >>> 8);
+                    digest[i*4+3] = (byte)word;
+                }
+                return true;
+            }
+        }
+        nonce += active;
+        return false;
+    }
+
+    /**
+     * Finish the message schedule for each lane
+     *
+     * This is a separate method to keep the compiled code for each step within
+     * the JIT inlining limits.  Vectors are not passed between methods since
+     * that would require the JIT compiler to allocate them.
+     */
+    private void expand() {
+        IntVector w0 = IntVector.fromArray(species, vW, 0);
+        IntVector w1 = IntVector.fromArray(species, vW, lanes);
+        IntVector w16 = vs0(w1).add(w0).add(C[16]);
+        w16.intoArray(vW, 16*lanes);
+        IntVector w17 = w1.add(C[17]);
+        w17.intoArray(vW, 17*lanes);
+        for (int t=18; t<64; t++) {
+            IntVector w = vs1(load(t-2));
+            if (t >= 23)
+                w = w.add(load(t-7));
+            if (t >= 31)
+                w = w.add(vs0(load(t-15)));
+            if (t >= 32)
+                w = w.add(load(t-16));
+            if (t < 32)
+                w = w.add(C[t]);
+            w.intoArray(vW, t*lanes);
+        }
+    }
+
+    /**
+     * Compress the message block for each lane and store the final hash values
+     */
+    private void compress() {
+        IntVector a = IntVector.broadcast(species, H[0]);
+        IntVector b = IntVector.broadcast(species, H[1]);
+        IntVector c = IntVector.broadcast(species, H[2]);
+        IntVector d = IntVector.broadcast(species, H[3]);
+        IntVector e = IntVector.broadcast(species, H[4]);
+        IntVector f = IntVector.broadcast(species, H[5]);
+        IntVector g = IntVector.broadcast(species, H[6]);
+        IntVector h = IntVector.broadcast(species, H[7]);
+        for (int t=0; t<64; t++) {
+            IntVector t1 = h.add(vS1(e)).add(g.lanewise(VectorOperators.XOR, e.and(f.lanewise(VectorOperators.XOR, g))));
+            if (t >= 2 && t < 16)
+                t1 = t1.add(K[t] + W[t]);
+            else
+                t1 = t1.add(load(t)).add(K[t]);
+            IntVector t2 = vS0(a).add(a.and(b).or(c.and(a.or(b))));
+            h = g;
+            g = f;
+            f = e;
+            e = d.add(t1);
+            d = c;
+            c = b;
+            b = a;
+            a = t1.add(t2);
+        }
+        a.add(H[0]).intoArray(vH, 0);
+        b.add(H[1]).intoArray(vH, lanes);
+        c.add(H[2]).intoArray(vH, 2*lanes);
+        d.add(H[3]).intoArray(vH, 3*lanes);
+        e.add(H[4]).intoArray(vH, 4*lanes);
+        f.add(H[5]).intoArray(vH, 5*lanes);
+        g.add(H[6]).intoArray(vH, 6*lanes);
+        h.add(H[7]).intoArray(vH, 7*lanes);
+    }
+
+    /**
+     * Load a message schedule word for each lane
+     *
+     * @param       t               Word index
+     * @return                      Message schedule vector
+     */
+    private IntVector load(int t) {
+        return IntVector.fromArray(species, vW, t*lanes);
+    }
+
+    /**
+     * SHA-256 functions for vectors
+     */
+    private static IntVector vs0(IntVector x) {
+        return ror(x, 7)
+                .lanewise(VectorOperators.XOR, ror(x, 18))
+                .lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.LSHR, 3));
+    }
+
+    private static IntVector vs1(IntVector x) {
+        return ror(x, 17)
+                .lanewise(VectorOperators.XOR, ror(x, 19))
+                .lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.LSHR, 10));
+    }
+
+    private static IntVector vS0(IntVector x) {
+        return ror(x, 2)
+                .lanewise(VectorOperators.XOR, ror(x, 13))
+                .lanewise(VectorOperators.XOR, ror(x, 22));
+    }
+
+    private static IntVector vS1(IntVector x) {
+        return ror(x, 6)
+                .lanewise(VectorOperators.XOR, ror(x, 11))
+                .lanewise(VectorOperators.XOR, ror(x, 25));
+    }
+
+    /**
+     * Rotate right
+     *
+     * VectorOperators.ROR is slower than two shifts with the Java 17 compiler
+     *
+     * @param       x               Vector
+     * @param       n               Rotate count
+     * @return                      Rotated vector
+     */
+    private static IntVector ror(IntVector x, int n) {
+        return x.lanewise(VectorOperators.LSHR, n).or(x.lanewise(VectorOperators.LSHL, 32-n));
+    }
+
+    /**
+     * SHA-256 functions for the nonce-independent message schedule words
+     */
+    private static int s0(int x) {
+        return Integer.rotateRight(x, 7) ^ Integer.rotateRight(x, 18) ^ (x >>> 3);
+    }
+
+    private static int s1(int x) {
+        return Integer.rotateRight(x, 17) ^ Integer.rotateRight(x, 19) ^ (x >>> 10);
+    }
+}
@@ -61,7 +61,7 @@ __constant LONG constants[] = {
  * Perform a single hash
  */
 static void hash(This *this) {
-    ULONG nonce = this->input[0] + (ULONG)get_global_id(0) + ((ULONG)this->passId<<32);  
+    ULONG nonce = this->input[0] + (ULONG)get_global_id(0) + (ULONG)this->passId*(ULONG)get_global_size(0);  
     ULONG state0 = nonce;
     ULONG state1 = this->input[1];
     ULONG state2 = this->input[2];  
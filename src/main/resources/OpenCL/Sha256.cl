@@ -73,16 +73,24 @@ static void hash(This *this) {
     // Transform the data (the SHA-256 algorithm is big-endian)
     //
     // We will modify the nonce (first 8 bytes of the input data) for each execution instance
-    // based on the global ID and the pass ID
+    // based on the global ID and the pass ID.  The nonce is a little-endian number, so it
+    // is incremented before it is stored in the first two big-endian input words.
     //
     int offset = 0;
     int r;
     uint input[16];
     for (r=0; r<16; r++, offset+=4)
-        input[r] = ((uint)this->input[offset] << 24) |  ((uint)this->input[offset+1] << 16) | 
+        input[r] = ((uint)this->input[offset] << 24) |  ((uint)this->input[offset+1] << 16) |
                    ((uint)this->input[offset+2] << 8) | ((uint)this->input[offset+3]);
-    input[0] += this->passId;
-    input[1] += get_global_id(0);
+    ulong nonce = ((ulong)this->input[0])       | ((ulong)this->input[1] << 8)  |
+                  ((ulong)this->input[2] << 16) | ((ulong)this->input[3] << 24) |
+                  ((ulong)this->input[4] << 32) | ((ulong)this->input[5] << 40) |
+                  ((ulong)this->input[6] << 48) | ((ulong)this->input[7] << 56);
+    nonce += (ulong)get_global_id(0) + (ulong)this->passId*(ulong)get_global_size(0);
+    input[0] = ((uint)(nonce & 0xff) << 24) | ((uint)((nonce >> 8) & 0xff) << 16) |
+               ((uint)((nonce >> 16) & 0xff) << 8) | (uint)((nonce >> 24) & 0xff);
+    input[1] = ((uint)((nonce >> 32) & 0xff) << 24) | ((uint)((nonce >> 40) & 0xff) << 16) |
+               ((uint)((nonce >> 48) & 0xff) << 8) | (uint)((nonce >> 56) & 0xff);
     for (r=0; r<16; r++) {
         w16 = input[r];
         T = (H + (rotateLeft(E, 26) ^ rotateLeft(E, 21) ^ rotateLeft(E, 7)) +
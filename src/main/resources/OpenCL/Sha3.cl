@@ -92,7 +92,7 @@ static void hash(This *this) {
     // The nonce is stored in the first 8 bytes of the input data in little-endian format.
     // We will modify the nonce based on our global and pass identifiers.
     //
-    ULONG nonce = state[0] += (ULONG)get_global_id(0) + ((ULONG)this->passId<<32);
+    ULONG nonce = state[0] += (ULONG)get_global_id(0) + (ULONG)this->passId*(ULONG)get_global_size(0);
     //
     // Perform the Keccak permutations
     //
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * NodePool tests using two stub nodes
+ */
+public class NodePoolTest extends TestCase {
+
+    /** First stub node */
+    private StubNode stub1;
+
+    /** Second stub node */
+    private StubNode stub2;
+
+    /** First node */
+    private NxtNode node1;
+
+    /** Second node */
+    private NxtNode node2;
+
+    /** Node pool */
+    private NodePool pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        Main.hedgePercentile = 95;
+        stub1 = new StubNode();
+        stub2 = new StubNode();
+        node1 = stub1.getNode();
+        node2 = stub2.getNode();
+        pool = new NodePool(Arrays.asList(node1, node2));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        stub1.stop();
+        stub2.stop();
+        Main.hedgePercentile = 95;
+    }
+
+    /**
+     * A request to a slow node is hedged to the other node
+     */
+    public void testHedging() throws Exception {
+        //
+        // Collect latency samples with the first node as the faster node
+        //
+        stub2.setDelay(300);
+        for (int i=0; i<40; i++)
+            NodePool.join(pool.getBlockHeightAsync());
+        assertTrue(node1.getLatencyPercentile(95) >= 0);
+        assertTrue(node1.getScore() < node2.getScore());
+        //
+        // The request is hedged once the first node is slower than its usual latency
+        //
+        long hedged = Metrics.getCount("nodes.hedged");
+        int count = stub2.getRequestCount();
+        stub1.setDelay(30000);
+        stub2.setDelay(0);
+        assertEquals(1000, (int)NodePool.join(pool.getBlockHeightAsync()));
+        assertEquals(hedged + 1, Metrics.getCount("nodes.hedged"));
+        assertEquals(count + 1, stub2.getRequestCount());
+        //
+        // The response came from the second node since the first node is still
+        // processing the request
+        //
+        assertEquals(1, stub1.getActiveCount());
+    }
+
+    /**
+     * A failed request is sent to the other node and the primary node is replaced
+     */
+    public void testFailover() throws Exception {
+        Main.hedgePercentile = 0;
+        assertSame(node1, pool.getPrimary());
+        long failovers = Metrics.getCount("nodes.failovers");
+        stub1.setFailureRate(1.0);
+        assertFalse(NodePool.join(pool.hasUnconfirmedTransactionsAsync()));
+        assertEquals(1, stub1.getRequestCount());
+        assertEquals(1, stub2.getRequestCount());
+        assertSame(node2, pool.getPrimary());
+        assertEquals(failovers + 1, Metrics.getCount("nodes.failovers"));
+        //
+        // The failed node is now the second choice and is not used while the other
+        // node is healthy
+        //
+        for (int i=0; i<5; i++)
+            assertEquals(1000000L, (long)NodePool.join(pool.getCurrentSupplyAsync()));
+        assertEquals(1, stub1.getRequestCount());
+    }
+
+    /**
+     * The initial primary node is the first node that responds
+     */
+    public void testConnect() throws Exception {
+        pool.connect();
+        assertSame(node1, pool.getPrimary());
+        stub1.setFailureRate(1.0);
+        pool.connect();
+        assertSame(node2, pool.getPrimary());
+        stub2.setFailureRate(1.0);
+        try {
+            pool.connect();
+            fail("Connect did not fail");
+        } catch (IOException exc) {
+            assertSame(node2, pool.getPrimary());
+        }
+    }
+
+    /**
+     * A node that keeps failing is not used until its retry delay has passed, but it
+     * is still used when no other node is available
+     */
+    public void testBackoff() throws Exception {
+        Main.hedgePercentile = 0;
+        stub1.setFailureRate(1.0);
+        stub2.setFailureRate(1.0);
+        for (int i=0; i<3; i++) {
+            try {
+                NodePool.join(pool.getBlockHeightAsync());
+                fail("Request did not fail");
+            } catch (IOException exc) {
+                assertFalse(exc instanceof NodeException);
+            }
+        }
+        assertFalse(node1.isAvailable());
+        assertFalse(node2.isAvailable());
+        //
+        // The nodes are still tried when every node is backing off and a successful
+        // request makes the node available again
+        //
+        stub2.setFailureRate(0.0);
+        assertEquals(1000, (int)NodePool.join(pool.getBlockHeightAsync()));
+        assertTrue(node2.isAvailable());
+        assertFalse(node1.isAvailable());
+        //
+        // The failing node is skipped while it is backing off
+        //
+        int count = stub1.getRequestCount();
+        for (int i=0; i<5; i++)
+            NodePool.join(pool.getBlockHeightAsync());
+        assertEquals(count, stub1.getRequestCount());
+    }
+
+    /**
+     * An error response is returned to the caller and does not count as a node failure
+     */
+    public void testErrorResponse() throws Exception {
+        long failures = Metrics.getCount("nodes.failures");
+        try {
+            NodePool.join(pool.requestAsync("getAccount", "account=0"));
+            fail("Error response not returned");
+        } catch (NodeException exc) {
+            assertEquals(1, exc.getErrorCode());
+            assertEquals("Incorrect request", exc.getErrorDescription());
+        }
+        assertEquals(1, stub1.getRequestCount());
+        assertEquals(0, stub2.getRequestCount());
+        assertEquals(failures, Metrics.getCount("nodes.failures"));
+        assertSame(node1, pool.getPrimary());
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * StubNode is a local HTTP server that answers the Nxt API requests issued by the minter.
+ *
+ * Each request is delayed by the configured latency and fails with HTTP status 503 at
+ * the configured failure rate.  A request type that the stub does not know returns an
+ * error response.
+ */
+public class StubNode {
+
+    //
+    // Send the response headers and body without waiting for a delayed ACK from the
+    // client, which would add about 40 ms to each request
+    //
+    static {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    /** HTTP server */
+    private final HttpServer server;
+
+    /** Request executor */
+    private final ExecutorService executor;
+
+    /** Random failures */
+    private final Random random = new Random(1);
+
+    /** Request counts by request type */
+    private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+
+    /** Request count */
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    /** Requests in progress */
+    private final AtomicInteger activeCount = new AtomicInteger();
+
+    /** Request delay (milliseconds) */
+    private volatile long delay;
+
+    /** Failure rate (0.0 - 1.0) */
+    private volatile double failureRate;
+
+    /**
+     * Start the stub node on a free local port
+     *
+     * @throws      IOException     Unable to start the HTTP server
+     */
+    public StubNode() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Stub node");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/nxt", this::processRequest);
+        server.start();
+    }
+
+    /**
+     * Stop the stub node
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Return a node for the stub
+     *
+     * @return                      Nxt node
+     */
+    public NxtNode getNode() {
+        return new NxtNode("127.0.0.1", server.getAddress().getPort());
+    }
+
+    /**
+     * Set the request delay
+     *
+     * @param       delay           Request delay (milliseconds)
+     */
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * Set the failure rate
+     *
+     * @param       failureRate     Fraction of the requests that fail (0.0 - 1.0)
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Return the number of requests received
+     *
+     * @return                      Request count
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Return the number of requests in progress
+     *
+     * @return                      Active request count
+     */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    /**
+     * Return the number of requests received for a request type
+     *
+     * @param       requestType     Request type
+     * @return                      Request count
+     */
+    public int getRequestCount(String requestType) {
+        AtomicInteger count = requestCounts.get(requestType);
+        return (count != null ? count.get() : 0);
+    }
+
+    /**
+     * Process a request
+     *
+     * @param       exchange        HTTP exchange
+     * @throws      IOException     Unable to send the response
+     */
+    private void processRequest(HttpExchange exchange) throws IOException {
+        activeCount.incrementAndGet();
+        try {
+            Map<String, String> params = parseParams(readRequest(exchange.getRequestBody()));
+            String requestType = params.getOrDefault("requestType", "");
+            requestCount.incrementAndGet();
+            requestCounts.computeIfAbsent(requestType, (type) -> new AtomicInteger()).incrementAndGet();
+            if (delay > 0)
+                Thread.sleep(delay);
+            boolean failed;
+            synchronized(random) {
+                failed = (failureRate > 0 && random.nextDouble() < failureRate);
+            }
+            if (failed) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            byte[] response = getResponse(requestType).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        } catch (InterruptedException exc) {
+            exchange.sendResponseHeaders(503, -1);
+        } finally {
+            exchange.close();
+            activeCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Return the response for a request type
+     *
+     * @param       requestType     Request type
+     * @return                      JSON response
+     */
+    private static String getResponse(String requestType) {
+        String response;
+        switch (requestType) {
+            case "getMintingTarget":
+                response = "{\"currency\":\"1\",\"difficulty\":\"65535\",\"targetBytes\":\"ffffffff\",\"counter\":1}";
+                break;
+            case "getBlockchainStatus":
+                response = "{\"numberOfBlocks\":1001}";
+                break;
+            case "getUnconfirmedTransactions":
+                response = "{\"unconfirmedTransactions\":[]}";
+                break;
+            case "getCurrency":
+                response = "{\"currentSupplyQNT\":\"1000000\"}";
+                break;
+            case "currencyMint":
+                response = "{\"unsignedTransactionBytes\":\"00\"}";
+                break;
+            case "getTransactionBytes":
+                response = "{\"transactionBytes\":\"00\"}";
+                break;
+            case "broadcastTransaction":
+                response = "{\"fullHash\":\"0000000000000000000000000000000000000000000000000000000000000000\"}";
+                break;
+            default:
+                response = "{\"errorCode\":1,\"errorDescription\":\"Incorrect request\"}";
+        }
+        return response;
+    }
+
+    /**
+     * Read the request body
+     *
+     * @param       in              Input stream
+     * @return                      Request body
+     * @throws      IOException     Unable to read the request
+     */
+    private static String readRequest(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) > 0)
+            out.write(buffer, 0, count);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parse the URL-encoded request parameters
+     *
+     * @param       body            Request body
+     * @return                      Parameter map
+     * @throws      IOException     Parameter is not valid
+     */
+    private static Map<String, String> parseParams(String body) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        for (String param : body.split("&")) {
+            int sep = param.indexOf('=');
+            if (sep > 0)
+                params.put(URLDecoder.decode(param.substring(0, sep), "UTF-8"),
+                           URLDecoder.decode(param.substring(sep+1), "UTF-8"));
+        }
+        return params;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.Nxt2Mint;
+import static org.ScripterRon.Nxt2Mint.Main.log;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Measure the solution submission cycle against a stub node
+ *
+ * A submission needs four requests: getBlockchainStatus, getUnconfirmedTransactions,
+ * currencyMint and broadcastTransaction.  The cycle is timed with the requests issued
+ * one after the other and with the requests overlapped the way Mint.submitSolution
+ * does it, where the status requests run while the transaction is created and only the
+ * broadcast waits for all three.  The two Nxt2API requests are sent to the stub node
+ * directly on the Nxt2API thread since the stub node cannot create real transactions.
+ */
+public class SubmissionTimingTest extends TestCase {
+
+    /** Stub node latency (milliseconds) */
+    private static final long LATENCY = 50;
+
+    /** Number of timed cycles */
+    private static final int CYCLES = 20;
+
+    /** Read timeout (milliseconds) */
+    private static final int READ_TIMEOUT = 30000;
+
+    /** Stub node */
+    private StubNode stub;
+
+    /** Stub node */
+    private NxtNode node;
+
+    /** Node pool */
+    private NodePool pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        stub = new StubNode();
+        node = stub.getNode();
+        pool = new NodePool(Collections.singletonList(node));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        stub.stop();
+    }
+
+    /**
+     * The overlapped cycle is faster than the sequential cycle
+     *
+     * The cycle times are logged.  Only their order is checked since the times depend
+     * on the host.
+     */
+    public void testSubmissionCycle() throws Exception {
+        sequentialCycle();
+        overlappedCycle();
+        stub.setDelay(LATENCY);
+        long sequentialTime = 0;
+        long overlappedTime = 0;
+        for (int i=0; i<CYCLES; i++) {
+            sequentialTime += sequentialCycle();
+            overlappedTime += overlappedCycle();
+        }
+        sequentialTime /= CYCLES;
+        overlappedTime /= CYCLES;
+        log.info(String.format("Submission cycle with %d ms node latency: sequential %d ms, overlapped %d ms",
+                               LATENCY, sequentialTime, overlappedTime));
+        assertTrue(sequentialTime >= 4*LATENCY);
+        assertTrue(overlappedTime >= 2*LATENCY);
+        assertTrue("Overlapped cycle " + overlappedTime + " ms, sequential cycle " + sequentialTime + " ms",
+                   overlappedTime < sequentialTime);
+    }
+
+    /**
+     * Issue the submission requests one after the other
+     *
+     * @return                      Cycle time (milliseconds)
+     * @throws      Exception       Request failed
+     */
+    private long sequentialCycle() throws Exception {
+        long startTime = System.currentTimeMillis();
+        NodePool.join(pool.getBlockHeightAsync());
+        NodePool.join(pool.hasUnconfirmedTransactionsAsync());
+        NodePool.join(pool.supplyAsync(() -> apiRequest("currencyMint")));
+        NodePool.join(pool.supplyAsync(() -> apiRequest("broadcastTransaction")));
+        return System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Issue the submission requests the way Mint.submitSolution does
+     *
+     * @return                      Cycle time (milliseconds)
+     * @throws      Exception       Request failed
+     */
+    private long overlappedCycle() throws Exception {
+        long startTime = System.currentTimeMillis();
+        CompletableFuture<Integer> blockFuture = pool.getBlockHeightAsync();
+        CompletableFuture<Boolean> unconfirmedFuture = pool.hasUnconfirmedTransactionsAsync();
+        CompletableFuture<Map<String, Object>> mintFuture = pool.supplyAsync(() -> apiRequest("currencyMint"));
+        NodePool.join(blockFuture
+                .thenCombine(unconfirmedFuture, (height, unconfirmed) -> height)
+                .thenAcceptBothAsync(mintFuture, (height, response) -> {
+                    try {
+                        apiRequest("broadcastTransaction");
+                    } catch (Exception exc) {
+                        throw new RuntimeException(exc);
+                    }
+                }, pool.getApiExecutor()));
+        return System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Issue a request in place of a Nxt2API request
+     *
+     * @param       requestType     Request type
+     * @return                      Response
+     * @throws      Exception       Request failed
+     */
+    private Map<String, Object> apiRequest(String requestType) throws Exception {
+        return NodeRequest.issueRequest(node, requestType, "", READ_TIMEOUT);
+    }
+}